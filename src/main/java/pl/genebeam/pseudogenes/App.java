@@ -12,17 +12,22 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.nio.charset.StandardCharsets;
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-import java.util.Spliterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
 import java.util.zip.GZIPInputStream;
 
 import org.apache.commons.io.FileUtils;
@@ -31,26 +36,34 @@ import org.apache.commons.lang3.StringUtils;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.Range;
 
+import gnu.trove.map.hash.TIntObjectHashMap;
+import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.SamInputResource;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
-import htsjdk.samtools.reference.ReferenceSequenceFile;
-import htsjdk.samtools.reference.ReferenceSequenceFileFactory;
-import pl.genebeam.pseudogenes.helpers.FixedBatchSpliteratorWrapper;
+import pl.genebeam.pseudogenes.helpers.AnnotationBundle;
+import pl.genebeam.pseudogenes.helpers.BamShard;
+import pl.genebeam.pseudogenes.helpers.JunctionCatalog;
+import pl.genebeam.pseudogenes.helpers.JunctionFlanks;
+import pl.genebeam.pseudogenes.helpers.ReadPipeline;
 import pl.genebeam.pseudogenes.helpers.Report;
+import pl.genebeam.pseudogenes.helpers.ScanTargets;
 import pl.genebeam.pseudogenes.helpers.Transcript;
 import pl.genebeam.pseudogenes.model.PositionWithEvidence;
 import pl.genebeam.pseudogenes.service.ClippedSeqAnalyzer;
 import pl.genebeam.pseudogenes.service.DisconcordanceAnalyzer;
 import pl.genebeam.pseudogenes.service.InsertSizeAnalyzer;
+import pl.genebeam.pseudogenes.service.ReadPreFilter;
+import pl.genebeam.utils.ContigIntervalIndex;
 import pl.genebeam.utils.GenomicPosition;
-import pl.genebeam.utils.RangeMultimapGeneral;
+import pl.genebeam.utils.MappedFastaReference;
 import pl.genebeam.utils.TxNameToGeneName;
 
 /**
@@ -60,7 +73,7 @@ import pl.genebeam.utils.TxNameToGeneName;
 public class App {
 	private static final org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(App.class);
 
-	@Parameter(names = "--reference", description = "Reference fastq")
+	@Parameter(names = "--reference", description = "Reference fasta, indexed with samtools faidx")
 	private String referenceFastaFile;
 
 	@Parameter(names = "--bam", description = "Input bam file")
@@ -72,6 +85,12 @@ public class App {
 	@Parameter(names = "--pseudogenes", description = "Pseudogenes gtf description")
 	private String pseudogenesFile;
 
+	@Parameter(names = "--annotation", description = "Annotation bundle created with --compile-annotation for the same reference, used instead of --standard-genome, --genes and --pseudogenes, which cannot be given with it")
+	private String annotationBundle = null;
+
+	@Parameter(names = "--compile-annotation", description = "Write annotations given with --standard-genome, --genes and --pseudogenes to this bundle file for the --reference and exit")
+	private String compileAnnotation = null;
+
 	@Parameter(names = "--omit-duplicated-reads", description = "Omit duplicates")
 	private boolean omitDuplicatedReads = false;
 
@@ -87,14 +106,50 @@ public class App {
 	@Parameter(names = "--threads", description = "Number of threads")
 	private int threads = 1;
 
+	@Parameter(names = "--pipeline-batch-size", description = "Number of reads in a single batch passed from the bam decoder to worker threads")
+	private int pipelineBatchSize = 10_000;
+
+	@Parameter(names = "--pipeline-queue-depth", description = "Number of decoded batches waiting for worker threads, at most queue depth + threads + 1 batches of reads are held in memory")
+	private int pipelineQueueDepth = 4;
+
+	@Parameter(names = "--sharded-scan", description = "Scan indexed bam in parallel shards, every thread uses its own reader, cannot be used with stdin as bam input")
+	private boolean shardedScan = false;
+
+	@Parameter(names = "--shard-size", description = "Maximal length of a contig part scanned as a single shard in sharded scan mode")
+	private int shardSize = 10_000_000;
+
+	@Parameter(names = "--targeted-scan", description = "Read only bam regions overlapping transcripts, requires an indexed bam")
+	private boolean targetedScan = false;
+
+	@Parameter(names = "--target-padding", description = "Bases added around transcripts in targeted scan mode, has to be longer than the soft clipped part of reads")
+	private int targetPadding = 1000;
+
+	@Parameter(names = "--target-junctions-only", description = "In targeted scan mode read only +/- target-padding windows around junction sites, insert size evidence from reads deep in exons is lost")
+	private boolean targetJunctionsOnly = false;
+
+	@Parameter(names = "--max-read-length", description = "Longest read expected, reference flanks of junctions are precomputed for clipped parts up to this length")
+	private int maxReadLength = 300;
+
+	@Parameter(names = "--flank-cache", description = "File with precomputed reference flanks of junctions, created if missing or built for other data")
+	private String flankCache = null;
+
+	@Parameter(names = "--alignment-cache-size", description = "Maximal number of remembered alignments of clipped sequences to junction flanks, 0 disables the cache")
+	private int alignmentCacheSize = 100_000;
+
+	@Parameter(names = "--min-junction-clips", description = "Align clipped reads only at junctions crossed by at least that many clipped reads, 1 aligns every clip")
+	private int minJunctionClips = 1;
+
+	@Parameter(names = "--saturation-cap", description = "Supporting reads kept per intron and method, further reads of a saturated intron are only counted and their clips are not aligned, 0 keeps all reads")
+	private int saturationCap = 0;
+
 	@Parameter(names = "--position", description = "Only selected position, in format chr9:39898200-39909240")
 	private String position = null;
 
 	@Parameter(names = "--output", description = "Ouput file, give - for stdout")
 	private String output;
-	@Parameter(names = "--output-json", description = "Ouput file for json", required = true)
+	@Parameter(names = "--output-json", description = "Ouput file for json, required unless compiling annotations")
 	private String jsonOutput;
-	@Parameter(names = "--output-vcf", description = "Ouput file for vcf", required = true)
+	@Parameter(names = "--output-vcf", description = "Ouput file for vcf, required unless compiling annotations")
 	private String vcfOutput;
 
 	@Parameter(names = "--sample-name", description = "Sample name", required = false)
@@ -104,10 +159,24 @@ public class App {
 	private String standardGenome = null;
 
 	private final Map<String, Transcript> transcriptsByGeneName = new HashMap<>();
-	private final RangeMultimapGeneral<GenomicPosition, Transcript> transcriptsMap = new RangeMultimapGeneral<>();
-
-	private final ClippedSeqAnalyzer clippedSeqAnalyzer = new ClippedSeqAnalyzer();
+	private final List<Transcript> transcripts = new ArrayList<>();
+	private ContigIntervalIndex<Transcript> transcriptIndex;
+	/**
+	 * true if reads come in coordinate order, transcripts are then looked up
+	 * in a window moving with the reads of every worker thread
+	 */
+	private boolean coordinateSorted;
+	private final ThreadLocal<ContigIntervalIndex.Sweep<Transcript>> transcriptSweep = ThreadLocal
+			.withInitial(() -> transcriptIndex.sweep(maxReadLength));
+	/**
+	 * reused by every worker thread for the transcripts covered by the current
+	 * read
+	 */
+	private final ThreadLocal<List<Transcript>> coveredTranscripts = ThreadLocal.withInitial(ArrayList::new);
+
+	private ClippedSeqAnalyzer clippedSeqAnalyzer;
 	private final InsertSizeAnalyzer insertSizeAnalyzer = new InsertSizeAnalyzer();
+	private ReadPreFilter readPreFilter;
 	private DisconcordanceAnalyzer disconcordanceAnalyzer;
 
 	public static void main(String[] args) {
@@ -126,7 +195,7 @@ public class App {
 
 	}
 
-	private ReferenceSequenceFile referenceSequenceFile;
+	private MappedFastaReference reference;
 
 	private SAMSequenceDictionary bamSequenceDictionary;
 	private Report report;
@@ -134,55 +203,39 @@ public class App {
 	private void go() throws IOException {
 		SamReader bamReader;
 
-		referenceSequenceFile = ReferenceSequenceFileFactory.getReferenceSequenceFile(new File(referenceFastaFile),
-				true, true);
-
-		Reader abysovReader = null;
-
-		if (StringUtils.isNotBlank(standardGenome)) {
-			log.info("Running with standard genome: " + standardGenome);
-
-			switch (standardGenome.toLowerCase()) {
-			case "hg19": {
-				ClassLoader classLoader = getClass().getClassLoader();
-				InputStream res = classLoader.getResourceAsStream("Abyzov-Genome-Res-2013-supp3.csv");
-				abysovReader = new BufferedReader(new InputStreamReader(res));
-				log.info("I'll load Abyzov-Genome-Res-2013-supp3 database");
-
-				if (StringUtils.isBlank(pseudogenesFile)) {
-					InputStream known = classLoader.getResourceAsStream("gencode.v19.2wayconspseudos.gtf");
-					File tmp = File.createTempFile("pseudogenes", ".tmp");
-					IOUtils.copy(known, new FileOutputStream(tmp));
-					tmp.deleteOnExit();
-					pseudogenesFile = tmp.getAbsolutePath();
-					log.info("I'll load internal pseudogenes database: Gencode 19");
-				}
-
-			}
-				break;
-			case "hg38": {
-				if (StringUtils.isBlank(pseudogenesFile)) {
-					ClassLoader classLoader = getClass().getClassLoader();
-					InputStream known = classLoader.getResourceAsStream("gencode.v29.2wayconspseudos.gtf");
-					File tmp = File.createTempFile("pseudogenes", ".tmp");
-					IOUtils.copy(known, new FileOutputStream(tmp));
-					tmp.deleteOnExit();
-					pseudogenesFile = tmp.getAbsolutePath();
-					log.info("I'll load internal pseudogenes database: Gencode 29");
-				}
-			}
-				break;
-			default:
-				throw new RuntimeException("Invalid standard genome, only hg19 and hg38 are supported");
+		if (StringUtils.isNotBlank(annotationBundle) && (StringUtils.isNotBlank(standardGenome)
+				|| StringUtils.isNotBlank(genesFile) || StringUtils.isNotBlank(pseudogenesFile))) {
+			throw new ParameterException(
+					"--annotation cannot be used with --standard-genome, --genes or --pseudogenes, the bundle already holds these annotations");
+		}
+		if (StringUtils.isNotBlank(compileAnnotation)) {
+			if (StringUtils.isBlank(referenceFastaFile)) {
+				throw new ParameterException(
+						"--compile-annotation requires --reference, the bundle can be used only with that reference");
 			}
-
+			Stopwatch stopwatch = Stopwatch.createStarted();
+			List<AnnotationBundle.Source> sources = annotationSources();
+			reference = new MappedFastaReference(new File(referenceFastaFile));
+			loadAnnotations();
+			disconcordanceAnalyzer.toAnnotationBundle(transcripts).write(new File(compileAnnotation),
+					reference.getDictionaryMd5(), sources);
+			log.info("Annotation bundle of " + transcripts.size() + " transcripts written to " + compileAnnotation
+					+ " in " + stopwatch.elapsed(TimeUnit.SECONDS) + " seconds");
+			return;
+		}
+		if (StringUtils.isBlank(jsonOutput) || StringUtils.isBlank(vcfOutput)) {
+			throw new ParameterException("The following options are required: --output-json, --output-vcf");
 		}
 
-		loadTranscriptsData();
-		report = new Report(txNameToGeneName);
+		reference = new MappedFastaReference(new File(referenceFastaFile));
 
-		disconcordanceAnalyzer = new DisconcordanceAnalyzer(pseudogenesFile, txNameToGeneName, abysovReader);
-		IOUtils.closeQuietly(abysovReader);
+		loadAnnotations();
+		Transcript.sortAndNumber(transcripts, reference::getContigIndex);
+		JunctionCatalog junctionCatalog = JunctionCatalog.build(transcripts);
+		log.info("Junction catalog: " + junctionCatalog.size() + " unique junctions of "
+				+ junctionCatalog.numberOfTranscriptJunctions() + " transcript junctions");
+		report = new Report(txNameToGeneName, transcripts.size(), saturationCap);
+		readPreFilter = new ReadPreFilter(onlySoftClipped);
 
 		SamInputResource samInputResource;
 		if ("-".equals(bamFile)) {
@@ -202,48 +255,114 @@ public class App {
 		bamReader = SamReaderFactory.makeDefault().open(samInputResource);
 
 		bamSequenceDictionary = bamReader.getFileHeader().getSequenceDictionary();
-
-		Spliterator<SAMRecord> splitIterator;
-		if (StringUtils.isBlank(position)) {
-			splitIterator = bamReader.spliterator();
-		} else {
+		transcriptIndex = buildTranscriptIndex(bamSequenceDictionary);
+		coordinateSorted = bamReader.getFileHeader().getSortOrder() == SAMFileHeader.SortOrder.coordinate;
+		log.info(coordinateSorted ? "Coordinate sorted input, transcripts are looked up in a moving window"
+				: "Input not sorted by coordinate, transcripts are looked up in the interval index");
+		clippedSeqAnalyzer = new ClippedSeqAnalyzer(junctionCatalog, loadJunctionFlanks(junctionCatalog), reference,
+				alignmentCacheSize, minJunctionClips);
+
+		boolean targeted = targetedScan && canQueryIndex(bamReader, "Targeted scan");
+		boolean sharded = shardedScan && canQueryIndex(bamReader, "Sharded scan");
+
+		ScanTargets scanTargets = null;
+		if (targeted) {
+			scanTargets = ScanTargets.transcripts(bamSequenceDictionary, transcripts, targetPadding,
+					targetJunctionsOnly);
+		} else if (sharded) {
+			scanTargets = ScanTargets.wholeGenome(bamSequenceDictionary);
+		}
+		if (StringUtils.isNotBlank(position)) {
 			log.info("Doing only a limited range analysis");
+		}
+		if (scanTargets != null && StringUtils.isNotBlank(position)) {
 			try {
-				SAMRecordIterator iterator = bamReader.queryOverlapping(StringUtils.substringBefore(position, ":"),
+				scanTargets = scanTargets.restrictTo(StringUtils.substringBefore(position, ":"),
 						Integer.valueOf(StringUtils.substringBetween(position, ":", "-")),
 						Integer.valueOf(StringUtils.substringAfter(position, "-")));
-
-				Iterable<SAMRecord> iterable = () -> iterator;
-				splitIterator = iterable.spliterator();
 			} catch (Exception e) {
 				log.error("Unable to parse position: " + position);
 				throw e;
 			}
 		}
-		Stream<SAMRecord> bamStream = StreamSupport.stream(splitIterator, false);
-		if (threads > 1) {
-			bamStream = FixedBatchSpliteratorWrapper.toFixedBatchStream(bamStream.parallel(), 10_000);
+		if (targeted) {
+			log.info("Targeted scan of " + scanTargets.size() + " intervals, " + scanTargets.totalLength()
+					+ " bases");
+		}
+
+		if (sharded) {
+			bamReader.close();
+			scanSharded(scanTargets.split(shardSize));
+		} else {
+			Iterator<SAMRecord> bamIterator;
+			if (targeted) {
+				bamIterator = bamReader.query(scanTargets.toQueryIntervals(), false);
+			} else if (StringUtils.isBlank(position)) {
+				bamIterator = bamReader.iterator();
+			} else {
+				try {
+					bamIterator = bamReader.queryOverlapping(StringUtils.substringBefore(position, ":"),
+							Integer.valueOf(StringUtils.substringBetween(position, ":", "-")),
+							Integer.valueOf(StringUtils.substringAfter(position, "-")));
+				} catch (Exception e) {
+					log.error("Unable to parse position: " + position);
+					throw e;
+				}
+			}
+			if (threads > 1) {
+				ReadPipeline pipeline = new ReadPipeline(threads, pipelineQueueDepth, pipelineBatchSize);
+				pipeline.run(bamIterator, this::processRead);
+			} else {
+				bamIterator.forEachRemaining(this::processRead);
+			}
+			bamReader.close();
+		}
+
+		report.mergeWorkerStats();
+		disconcordanceAnalyzer.mergeWorkerDisconcordants();
+
+		log.info("Read pre-filter: " + readPreFilter);
+		log.info("Clip matching: " + clippedSeqAnalyzer.getClipMatcher());
+		if (clippedSeqAnalyzer.getClipCounter() != null) {
+			log.info("Clips per junction: " + clippedSeqAnalyzer.getClipCounter());
+		}
+		if (saturationCap > 0) {
+			log.info("Saturation: " + clippedSeqAnalyzer.getSaturationSkips()
+					+ " clips not aligned at introns with at least " + saturationCap + " supporting reads");
 		}
-		bamStream.forEach(read -> processRead(read));
-		bamReader.close();
 
 		OutputStream vcfOS = new BufferedOutputStream(new FileOutputStream(vcfOutput));
-		// VcfBuilder outputVcf = new VcfBuilder(vcfOS, referenceSequenceFile);
+		// VcfBuilder outputVcf = new VcfBuilder(vcfOS, reference);
+
+		// windows around all mate clusters joined with the annotations at once,
+		// windows of the transcript t are firstWindow[t] until firstWindow[t + 1]
+		// transcripts are the instances that produced the clusters, looked up
+		// by id since names are not unique
+		List<Transcript> disconcordantTranscripts = disconcordanceAnalyzer.getDisconcordantTranscripts();
+		TIntObjectHashMap<List<PositionWithEvidence>> disconcordants = disconcordanceAnalyzer.getDisconcordants();
+		List<Range<GenomicPosition>> windows = new ArrayList<>();
+		int[] firstWindow = new int[disconcordantTranscripts.size() + 1];
+		for (int t = 0; t < disconcordantTranscripts.size(); t++) {
+			firstWindow[t] = windows.size();
+			for (PositionWithEvidence pwe : disconcordants.get(disconcordantTranscripts.get(t).getId())) {
+				windows.addAll(DisconcordanceAnalyzer.annotationWindows(pwe, 100));
+			}
+		}
+		firstWindow[disconcordantTranscripts.size()] = windows.size();
+		List<Set<String>> pseudogenesInWindows = disconcordanceAnalyzer.findPseudogenesIn(windows);
+		List<Set<String>> abyzovInWindows = disconcordanceAnalyzer.findHitsAbyzovOf(windows);
 
 		StringBuilder sb = new StringBuilder();
-		for (Map.Entry<Transcript, Collection<PositionWithEvidence>> transcriptToPositions : disconcordanceAnalyzer
-				.getDisconcordants().asMap().entrySet()) {
-			Transcript transcript = transcriptToPositions.getKey();
+		for (int t = 0; t < disconcordantTranscripts.size(); t++) {
+			Transcript transcript = disconcordantTranscripts.get(t);
 
 			Set<String> hitsPseudogenesOf = new HashSet<String>();
 			Set<String> hitsAbyzovOf = new HashSet<String>();
 
-			for (PositionWithEvidence pwe : transcriptToPositions.getValue()) {
-				GenomicPosition gp = pwe.getPosition();
-				hitsPseudogenesOf
-						.addAll(disconcordanceAnalyzer.findPseudogenesIn(Range.closed(gp.move(-100), gp.move(100))));
+			for (int window = firstWindow[t]; window < firstWindow[t + 1]; window++) {
+				hitsPseudogenesOf.addAll(pseudogenesInWindows.get(window));
 
-				hitsAbyzovOf.addAll(disconcordanceAnalyzer.findHitsAbyzovOf(Range.closed(gp.move(-100), gp.move(100))));
+				hitsAbyzovOf.addAll(abyzovInWindows.get(window));
 
 			}
 
@@ -267,7 +386,7 @@ public class App {
 					+ "hits: " + hitsPseudogenesOf + "\n");
 
 			report.addPossiblePositions(transcript,
-					transcriptToPositions.getValue().stream().sorted().collect(Collectors.toList()));
+					disconcordants.get(transcript.getId()).stream().sorted().collect(Collectors.toList()));
 
 		}
 
@@ -286,10 +405,180 @@ public class App {
 		// }
 
 		BufferedOutputStream jsonOs = new BufferedOutputStream(new FileOutputStream(jsonOutput));
-		report.toVcf(referenceSequenceFile, vcfOS, jsonOs, sampleName);
+		report.toVcf(reference, vcfOS, jsonOs, sampleName);
 		// outputVcf.close();
 		os.close();
+		reference.close();
+
+	}
+
+	private boolean canQueryIndex(SamReader bamReader, String mode) {
+		if ("-".equals(bamFile)) {
+			log.warn(mode + " is not possible for stdin input, falling back to a full scan with a single reader");
+			return false;
+		}
+		if (!bamReader.hasIndex()) {
+			log.warn(mode + " requires an indexed bam, falling back to a full scan with a single reader");
+			return false;
+		}
+		return true;
+	}
 
+	/**
+	 * Scan shards in parallel, every worker thread opens its own reader and
+	 * takes shards from the common queue until it is empty
+	 */
+	private void scanSharded(List<BamShard> shards) throws IOException {
+		log.info("Sharded scan of " + shards.size() + " shards using " + threads + " threads");
+		Queue<BamShard> shardsQueue = new ConcurrentLinkedQueue<>(shards);
+		File bam = new File(bamFile);
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<?>> workers = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			workers.add(executor.submit(() -> {
+				try (SamReader shardReader = SamReaderFactory.makeDefault().open(bam)) {
+					BamShard shard;
+					while ((shard = shardsQueue.poll()) != null) {
+						scanShard(shardReader, shard);
+					}
+				}
+				return null;
+			}));
+		}
+		executor.shutdown();
+
+		try {
+			for (Future<?> worker : workers) {
+				worker.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Sharded scan interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Sharded scan failed", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void scanShard(SamReader shardReader, BamShard shard) {
+		try (SAMRecordIterator iterator = shardReader.query(shard.getQueryIntervals(), false)) {
+			while (iterator.hasNext()) {
+				SAMRecord read = iterator.next();
+				if (shard.owns(read)) {
+					processRead(read);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Flanks of the neighbour exons for all junctions, read from the flank
+	 * cache if it was built for the same data, otherwise fetched from the
+	 * reference (and stored in the cache when given)
+	 */
+	private JunctionFlanks loadJunctionFlanks(JunctionCatalog junctionCatalog) throws IOException {
+		Stopwatch stopwatch = Stopwatch.createStarted();
+		File referenceFile = new File(referenceFastaFile);
+		JunctionFlanks junctionFlanks = null;
+		if (StringUtils.isNotBlank(flankCache) && new File(flankCache).exists()) {
+			junctionFlanks = JunctionFlanks.read(new File(flankCache), junctionCatalog, referenceFile,
+					reference.getDictionaryMd5(), maxReadLength);
+		}
+		if (junctionFlanks == null) {
+			junctionFlanks = JunctionFlanks.build(junctionCatalog, reference, maxReadLength);
+			if (StringUtils.isNotBlank(flankCache)) {
+				junctionFlanks.write(new File(flankCache), referenceFile, reference.getDictionaryMd5(),
+						junctionCatalog.fingerprint());
+			}
+		}
+		log.info("Junction flanks ready, " + junctionFlanks.getDataSize() + " bytes, in "
+				+ stopwatch.elapsed(TimeUnit.SECONDS) + " seconds");
+		return junctionFlanks;
+	}
+
+	/**
+	 * Transcripts, gene names and pseudogene annotations, from the bundle if
+	 * given, otherwise parsed from the standard genome resources and files
+	 */
+	private void loadAnnotations() throws IOException {
+		if (StringUtils.isNotBlank(annotationBundle)) {
+			Stopwatch stopwatch = Stopwatch.createStarted();
+			AnnotationBundle bundle = AnnotationBundle.read(new File(annotationBundle), reference.getDictionaryMd5());
+			bundle.getTranscripts().forEach(transcript -> {
+				transcriptsByGeneName.put(transcript.getGene(), transcript);
+				transcripts.add(transcript);
+			});
+			txNameToGeneName = bundle.getTxNameToGeneName();
+			disconcordanceAnalyzer = new DisconcordanceAnalyzer(bundle);
+			log.info("Annotation bundle " + annotationBundle + " compiled from " + bundle.getSources() + " loaded, "
+					+ transcripts.size() + " transcripts, in " + stopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+			return;
+		}
+
+		Reader abysovReader = null;
+
+		if (StringUtils.isNotBlank(standardGenome)) {
+			log.info("Running with standard genome: " + standardGenome);
+
+			switch (standardGenome.toLowerCase()) {
+			case "hg19": {
+				ClassLoader classLoader = getClass().getClassLoader();
+				InputStream res = classLoader.getResourceAsStream("Abyzov-Genome-Res-2013-supp3.csv");
+				abysovReader = new BufferedReader(new InputStreamReader(res));
+				log.info("I'll load Abyzov-Genome-Res-2013-supp3 database");
+
+				if (StringUtils.isBlank(pseudogenesFile)) {
+					InputStream known = classLoader.getResourceAsStream("gencode.v19.2wayconspseudos.gtf");
+					File tmp = File.createTempFile("pseudogenes", ".tmp");
+					IOUtils.copy(known, new FileOutputStream(tmp));
+					tmp.deleteOnExit();
+					pseudogenesFile = tmp.getAbsolutePath();
+					log.info("I'll load internal pseudogenes database: Gencode 19");
+				}
+
+			}
+				break;
+			case "hg38": {
+				if (StringUtils.isBlank(pseudogenesFile)) {
+					ClassLoader classLoader = getClass().getClassLoader();
+					InputStream known = classLoader.getResourceAsStream("gencode.v29.2wayconspseudos.gtf");
+					File tmp = File.createTempFile("pseudogenes", ".tmp");
+					IOUtils.copy(known, new FileOutputStream(tmp));
+					tmp.deleteOnExit();
+					pseudogenesFile = tmp.getAbsolutePath();
+					log.info("I'll load internal pseudogenes database: Gencode 29");
+				}
+			}
+				break;
+			default:
+				throw new RuntimeException("Invalid standard genome, only hg19 and hg38 are supported");
+			}
+
+		}
+
+		loadTranscriptsData();
+		disconcordanceAnalyzer = new DisconcordanceAnalyzer(pseudogenesFile, txNameToGeneName, abysovReader);
+		IOUtils.closeQuietly(abysovReader);
+	}
+
+	/**
+	 * @return inputs of loadAnnotations, to be called before it replaces the
+	 *         built in databases with temporary files
+	 */
+	private List<AnnotationBundle.Source> annotationSources() {
+		List<AnnotationBundle.Source> sources = new ArrayList<>();
+		if (StringUtils.isNotBlank(standardGenome)) {
+			sources.add(new AnnotationBundle.Source("standard genome " + standardGenome.toLowerCase(), -1, -1));
+		}
+		if (StringUtils.isNotBlank(genesFile)) {
+			sources.add(AnnotationBundle.Source.of(new File(genesFile)));
+		}
+		if (StringUtils.isNotBlank(pseudogenesFile)) {
+			sources.add(AnnotationBundle.Source.of(new File(pseudogenesFile)));
+		}
+		return sources;
 	}
 
 	private TxNameToGeneName txNameToGeneName;
@@ -347,12 +636,39 @@ public class App {
 		Transcript transcript = new Transcript(line);
 		synchronized (transcriptsByGeneName) {
 			transcriptsByGeneName.put(transcript.getGene(), transcript);
-			transcriptsMap.put(Range.closedOpen(new GenomicPosition(transcript.getChr(), transcript.getTxStart()),
-					new GenomicPosition(transcript.getChr(), transcript.getTxEnd())), transcript);
+			transcripts.add(transcript);
 		}
 
 	}
 
+	/**
+	 * remove elements from index from on which are already present before it;
+	 * lists are short, so the quadratic check is cheaper than hashing
+	 */
+	private static void removeDuplicates(List<Transcript> transcripts, int from) {
+		for (int i = transcripts.size() - 1; i >= from; i--) {
+			Transcript transcript = transcripts.get(i);
+			for (int j = 0; j < from; j++) {
+				if (transcripts.get(j).equals(transcript)) {
+					transcripts.remove(i);
+					break;
+				}
+			}
+		}
+	}
+
+	private ContigIntervalIndex<Transcript> buildTranscriptIndex(SAMSequenceDictionary dictionary) {
+		ContigIntervalIndex.Builder<Transcript> builder = ContigIntervalIndex.builder(dictionary.size());
+		for (Transcript transcript : transcripts) {
+			int referenceIndex = dictionary.getSequenceIndex(transcript.getChr());
+			if (referenceIndex != -1) {
+				// transcript covers [txStart, txEnd)
+				builder.add(referenceIndex, transcript.getTxStart(), transcript.getTxEnd() - 1, transcript);
+			}
+		}
+		return builder.build();
+	}
+
 	private void processRead(SAMRecord read) {
 		try {
 			int c = counter.incrementAndGet();
@@ -370,25 +686,40 @@ public class App {
 			}
 
 			if (!read.getReadUnmappedFlag()) {
-				String chr = bamSequenceDictionary.getSequence(read.getReferenceIndex()).getSequenceName();
-				GenomicPosition readStart = new GenomicPosition(chr, read.getUnclippedStart());
-				GenomicPosition readEnd = new GenomicPosition(chr, read.getUnclippedEnd());
-
-				Set<Transcript> transcriptCoveredByRead = new HashSet<>();
-				transcriptCoveredByRead.addAll(transcriptsMap.get(readStart));
-				transcriptCoveredByRead.addAll(transcriptsMap.get(readEnd));
+				if (!readPreFilter.accept(read)) {
+					return;
+				}
 
 				int unclippedStart = read.getUnclippedStart();
 				int unclippedEnd = read.getUnclippedEnd();
 				if (unclippedStart > unclippedEnd) {
+					String chr = bamSequenceDictionary.getSequence(read.getReferenceIndex()).getSequenceName();
 					log.warn("Strange read " + read.getReadName() + " at " + chr + ":" + unclippedStart + " with end: "
 							+ chr + ":" + unclippedEnd);
 					return;
 				}
 
+				List<Transcript> transcriptCoveredByRead = coveredTranscripts.get();
+				transcriptCoveredByRead.clear();
+				int referenceIndex = read.getReferenceIndex();
+				int coveringStart;
+				if (coordinateSorted) {
+					// clipped bases of a read are not longer than the read, the
+					// sweep falls back to the index for longer ones
+					ContigIntervalIndex.Sweep<Transcript> sweep = transcriptSweep.get();
+					sweep.moveTo(referenceIndex, read.getAlignmentStart());
+					sweep.containing(unclippedStart, transcriptCoveredByRead);
+					coveringStart = transcriptCoveredByRead.size();
+					sweep.containing(unclippedEnd, transcriptCoveredByRead);
+				} else {
+					transcriptIndex.containing(referenceIndex, unclippedStart, transcriptCoveredByRead);
+					coveringStart = transcriptCoveredByRead.size();
+					transcriptIndex.containing(referenceIndex, unclippedEnd, transcriptCoveredByRead);
+				}
+				removeDuplicates(transcriptCoveredByRead, coveringStart);
+
 				if (!transcriptCoveredByRead.isEmpty()) {
-					clippedSeqAnalyzer.analyzeClippedSeq(read, transcriptCoveredByRead, referenceSequenceFile,
-							onlySoftClipped, report);
+					clippedSeqAnalyzer.analyzeClippedSeq(read, transcriptCoveredByRead, onlySoftClipped, report);
 					insertSizeAnalyzer.analyzeInsertSize(read, transcriptCoveredByRead, bamSequenceDictionary, report);
 					disconcordanceAnalyzer.analyzeDisconcordant(read, transcriptCoveredByRead);
 				}
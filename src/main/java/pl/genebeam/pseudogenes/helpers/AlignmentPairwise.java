@@ -10,6 +10,8 @@ import org.biojava.nbio.core.sequence.DNASequence;
 import org.biojava.nbio.core.sequence.compound.AmbiguityDNACompoundSet;
 import org.biojava.nbio.core.sequence.compound.NucleotideCompound;
 
+import pl.genebeam.utils.BandedLocalAligner;
+
 public class AlignmentPairwise {
 	public static void main(String[] args) throws Exception {
 		String targetSeq = "CACGTTTCTTGTGGCAGCTTAAGTTTGAATGTCATTTCTTCAATGGGACGGA"
@@ -33,5 +35,13 @@ public class AlignmentPairwise {
 
 		psa.getNumIdenticals();
 		System.out.println(psa);
+
+		// the aligner used by the clipped reads analysis should agree
+		BandedLocalAligner aligner = new BandedLocalAligner();
+		aligner.align(querySeq.getBytes(), 0, querySeq.length(), targetSeq.getBytes(), 0, targetSeq.length(),
+				targetSeq.length());
+		String[] aligned = aligner.getAlignedStrings();
+		System.out.println(aligned[0] + "\n" + aligned[1]);
+		System.out.println("Identicals: " + psa.getNumIdenticals() + " / " + aligner.getIdenticals());
 	}
 }
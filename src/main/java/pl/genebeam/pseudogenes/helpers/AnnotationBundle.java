@@ -0,0 +1,434 @@
+package pl.genebeam.pseudogenes.helpers;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import gnu.trove.list.array.TIntArrayList;
+import pl.genebeam.utils.TxNameToGeneName;
+
+/**
+ * All annotations used by a run, compiled once into a single binary file:
+ * transcripts with their exons and introns, the transcript to gene map,
+ * intervals of annotated pseudogenes and of Abyzov insertions with their gene
+ * sets. Strings are stored once in a table and referenced by index, the file
+ * is read through a memory mapped buffer. Junction sites are rebuilt from
+ * the exon arrays by a linear merge, interval indices are built from the
+ * stored intervals.
+ * <p>
+ * The header holds the MD5 of the sequence dictionary of the reference the
+ * bundle was compiled for and the size and modification time of every source
+ * file, a bundle is rejected for another reference or after a source changed.
+ *
+ * @author pstawinski
+ *
+ */
+public class AnnotationBundle {
+	private static final org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(AnnotationBundle.class);
+
+	private static final long MAGIC = 0x50534741_4e4e4f54L; // PSGANNOT
+	private static final int VERSION = 2;
+
+	/**
+	 * input the annotations were compiled from: a file with its size and
+	 * modification time or a built in database with both -1
+	 */
+	public static final class Source {
+		private final String name;
+		private final long length;
+		private final long lastModified;
+
+		public Source(String name, long length, long lastModified) {
+			this.name = name;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+
+		public static Source of(File file) {
+			return new Source(file.getAbsolutePath(), file.length(), file.lastModified());
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public boolean isFile() {
+			return length >= 0;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	/**
+	 * closed intervals with a value each
+	 */
+	public static final class Intervals {
+		private final List<String> contigs = new ArrayList<>();
+		private final TIntArrayList starts = new TIntArrayList();
+		private final TIntArrayList ends = new TIntArrayList();
+		private final List<String> values = new ArrayList<>();
+
+		public void add(String contig, int start, int end, String value) {
+			contigs.add(contig);
+			starts.add(start);
+			ends.add(end);
+			values.add(value);
+		}
+
+		public int size() {
+			return contigs.size();
+		}
+
+		public String getContig(int i) {
+			return contigs.get(i);
+		}
+
+		public int getStart(int i) {
+			return starts.get(i);
+		}
+
+		public int getEnd(int i) {
+			return ends.get(i);
+		}
+
+		public String getValue(int i) {
+			return values.get(i);
+		}
+	}
+
+	private final List<Transcript> transcripts;
+	private final TxNameToGeneName txNameToGeneName;
+	private final Intervals pseudogenes;
+	private final Set<String> referencePseudogeneGenes;
+	private final Intervals abyzovInsertions;
+	private final Set<String> abyzovGenes;
+	/**
+	 * set when the bundle is written or read
+	 */
+	private String referenceDictionaryMd5;
+	private List<Source> sources = new ArrayList<>();
+
+	public AnnotationBundle(List<Transcript> transcripts, TxNameToGeneName txNameToGeneName, Intervals pseudogenes,
+			Set<String> referencePseudogeneGenes, Intervals abyzovInsertions, Set<String> abyzovGenes) {
+		this.transcripts = transcripts;
+		this.txNameToGeneName = txNameToGeneName;
+		this.pseudogenes = pseudogenes;
+		this.referencePseudogeneGenes = referencePseudogeneGenes;
+		this.abyzovInsertions = abyzovInsertions;
+		this.abyzovGenes = abyzovGenes;
+	}
+
+	public List<Transcript> getTranscripts() {
+		return transcripts;
+	}
+
+	public TxNameToGeneName getTxNameToGeneName() {
+		return txNameToGeneName;
+	}
+
+	public Intervals getPseudogenes() {
+		return pseudogenes;
+	}
+
+	public Set<String> getReferencePseudogeneGenes() {
+		return referencePseudogeneGenes;
+	}
+
+	public Intervals getAbyzovInsertions() {
+		return abyzovInsertions;
+	}
+
+	public Set<String> getAbyzovGenes() {
+		return abyzovGenes;
+	}
+
+	public String getReferenceDictionaryMd5() {
+		return referenceDictionaryMd5;
+	}
+
+	public List<Source> getSources() {
+		return sources;
+	}
+
+	/**
+	 * @param referenceDictionaryMd5
+	 *            MD5 of the sequence dictionary of the reference the
+	 *            annotations are used with
+	 * @param sources
+	 *            inputs the annotations were read from
+	 */
+	public void write(File file, String referenceDictionaryMd5, List<Source> sources) throws IOException {
+		this.referenceDictionaryMd5 = referenceDictionaryMd5;
+		this.sources = sources;
+		StringTable strings = new StringTable();
+		for (Transcript transcript : transcripts) {
+			strings.add(transcript.getName());
+			strings.add(transcript.getGene());
+			strings.add(transcript.getChr());
+		}
+		txNameToGeneName.asMap().forEach((tx, gene) -> {
+			strings.add(tx);
+			strings.add(gene);
+		});
+		strings.addAll(pseudogenes);
+		strings.addAll(referencePseudogeneGenes);
+		strings.addAll(abyzovInsertions);
+		strings.addAll(abyzovGenes);
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeLong(MAGIC);
+			out.writeInt(VERSION);
+			writeString(out, referenceDictionaryMd5);
+			out.writeInt(sources.size());
+			for (Source source : sources) {
+				writeString(out, source.name);
+				out.writeLong(source.length);
+				out.writeLong(source.lastModified);
+			}
+
+			out.writeInt(strings.indexes.size());
+			for (String string : strings.indexes.keySet()) {
+				writeString(out, string);
+			}
+
+			out.writeInt(transcripts.size());
+			for (Transcript transcript : transcripts) {
+				out.writeInt(strings.indexOf(transcript.getName()));
+				out.writeInt(strings.indexOf(transcript.getGene()));
+				out.writeInt(strings.indexOf(transcript.getChr()));
+				out.writeInt(transcript.getTxStart());
+				out.writeInt(transcript.getTxEnd());
+				out.writeInt(transcript.getCdsStart());
+				out.writeInt(transcript.getCdsEnd());
+				out.writeBoolean(transcript.isStrandPlus());
+				writeInts(out, transcript.getExonStarts());
+				writeInts(out, transcript.getIntronStarts());
+			}
+
+			Map<String, String> txToGene = txNameToGeneName.asMap();
+			out.writeInt(txToGene.size());
+			for (Map.Entry<String, String> entry : txToGene.entrySet()) {
+				out.writeInt(strings.indexOf(entry.getKey()));
+				out.writeInt(strings.indexOf(entry.getValue()));
+			}
+
+			writeIntervals(out, pseudogenes, strings);
+			writeStrings(out, referencePseudogeneGenes, strings);
+			writeIntervals(out, abyzovInsertions, strings);
+			writeStrings(out, abyzovGenes, strings);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String string) throws IOException {
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static void writeInts(DataOutputStream out, List<Integer> values) throws IOException {
+		out.writeInt(values.size());
+		for (int value : values) {
+			out.writeInt(value);
+		}
+	}
+
+	private static void writeIntervals(DataOutputStream out, Intervals intervals, StringTable strings)
+			throws IOException {
+		out.writeInt(intervals.size());
+		for (int i = 0; i < intervals.size(); i++) {
+			out.writeInt(strings.indexOf(intervals.getContig(i)));
+			out.writeInt(intervals.getStart(i));
+			out.writeInt(intervals.getEnd(i));
+			out.writeInt(strings.indexOf(intervals.getValue(i)));
+		}
+	}
+
+	private static void writeStrings(DataOutputStream out, Collection<String> values, StringTable strings)
+			throws IOException {
+		out.writeInt(values.size());
+		for (String value : values) {
+			out.writeInt(strings.indexOf(value));
+		}
+	}
+
+	/**
+	 * @param referenceDictionaryMd5
+	 *            MD5 of the sequence dictionary of the reference in use
+	 * @throws IOException
+	 *             if the file is not an annotation bundle of this version, was
+	 *             compiled for another reference or any of its source files
+	 *             changed since
+	 */
+	public static AnnotationBundle read(File file, String referenceDictionaryMd5) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+				FileChannel channel = raf.getChannel()) {
+			MappedByteBuffer in = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			if (in.remaining() < 12 || in.getLong() != MAGIC) {
+				throw new IOException("Not an annotation bundle: " + file);
+			}
+			int version = in.getInt();
+			if (version != VERSION) {
+				throw new IOException("Annotation bundle " + file + " has version " + version + ", expected "
+						+ VERSION + ", compile it again");
+			}
+			String bundleDictionaryMd5 = readString(in);
+			if (!bundleDictionaryMd5.equals(referenceDictionaryMd5)) {
+				throw new IOException("Annotation bundle " + file
+						+ " was compiled for a reference with another sequence dictionary, compile it again");
+			}
+			int numberOfSources = in.getInt();
+			List<Source> sources = new ArrayList<>(numberOfSources);
+			for (int i = 0; i < numberOfSources; i++) {
+				Source source = new Source(readString(in), in.getLong(), in.getLong());
+				checkSource(file, source);
+				sources.add(source);
+			}
+
+			String[] strings = new String[in.getInt()];
+			byte[] bytes = new byte[0];
+			for (int i = 0; i < strings.length; i++) {
+				int length = in.getInt();
+				if (bytes.length < length) {
+					bytes = new byte[length];
+				}
+				in.get(bytes, 0, length);
+				strings[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+			}
+
+			int numberOfTranscripts = in.getInt();
+			List<Transcript> transcripts = new ArrayList<>(numberOfTranscripts);
+			for (int i = 0; i < numberOfTranscripts; i++) {
+				String name = string(strings, in.getInt());
+				String gene = string(strings, in.getInt());
+				String chr = string(strings, in.getInt());
+				int txStart = in.getInt();
+				int txEnd = in.getInt();
+				int cdsStart = in.getInt();
+				int cdsEnd = in.getInt();
+				boolean strandPlus = in.get() != 0;
+				int[] exonStarts = readInts(in);
+				int[] intronStarts = readInts(in);
+				transcripts.add(new Transcript(name, gene, chr, txStart, txEnd, cdsStart, cdsEnd, exonStarts,
+						intronStarts, strandPlus));
+			}
+
+			int numberOfTxToGene = in.getInt();
+			Map<String, String> txToGene = new HashMap<>(numberOfTxToGene * 2);
+			for (int i = 0; i < numberOfTxToGene; i++) {
+				txToGene.put(string(strings, in.getInt()), string(strings, in.getInt()));
+			}
+
+			Intervals pseudogenes = readIntervals(in, strings);
+			Set<String> referencePseudogeneGenes = readStrings(in, strings);
+			Intervals abyzovInsertions = readIntervals(in, strings);
+			Set<String> abyzovGenes = readStrings(in, strings);
+			AnnotationBundle bundle = new AnnotationBundle(transcripts, new TxNameToGeneName(txToGene), pseudogenes,
+					referencePseudogeneGenes, abyzovInsertions, abyzovGenes);
+			bundle.referenceDictionaryMd5 = bundleDictionaryMd5;
+			bundle.sources = sources;
+			return bundle;
+		}
+	}
+
+	/**
+	 * @throws IOException
+	 *             if the source file differs from the one compiled; a missing
+	 *             file is only reported, the bundle may be used without its
+	 *             sources
+	 */
+	private static void checkSource(File file, Source source) throws IOException {
+		if (!source.isFile()) {
+			return;
+		}
+		File sourceFile = new File(source.name);
+		if (!sourceFile.exists()) {
+			log.warn("Source " + source.name + " of the annotation bundle " + file + " not found, not checked");
+			return;
+		}
+		if (sourceFile.length() != source.length || sourceFile.lastModified() != source.lastModified) {
+			throw new IOException("Source " + source.name + " of the annotation bundle " + file
+					+ " changed since the bundle was compiled, compile it again");
+		}
+	}
+
+	private static String readString(MappedByteBuffer in) {
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static String string(String[] strings, int index) {
+		return index == -1 ? null : strings[index];
+	}
+
+	private static int[] readInts(MappedByteBuffer in) {
+		int[] values = new int[in.getInt()];
+		in.asIntBuffer().get(values);
+		in.position(in.position() + values.length * Integer.BYTES);
+		return values;
+	}
+
+	private static Intervals readIntervals(MappedByteBuffer in, String[] strings) {
+		Intervals intervals = new Intervals();
+		int size = in.getInt();
+		for (int i = 0; i < size; i++) {
+			intervals.add(string(strings, in.getInt()), in.getInt(), in.getInt(), string(strings, in.getInt()));
+		}
+		return intervals;
+	}
+
+	private static Set<String> readStrings(MappedByteBuffer in, String[] strings) {
+		int size = in.getInt();
+		Set<String> values = new HashSet<>(size * 2);
+		for (int i = 0; i < size; i++) {
+			values.add(string(strings, in.getInt()));
+		}
+		return values;
+	}
+
+	/**
+	 * unique strings in order of the first use, null is stored as -1
+	 */
+	private static final class StringTable {
+		private final Map<String, Integer> indexes = new LinkedHashMap<>();
+
+		void add(String string) {
+			if (string != null) {
+				indexes.putIfAbsent(string, indexes.size());
+			}
+		}
+
+		void addAll(Collection<String> strings) {
+			strings.forEach(this::add);
+		}
+
+		void addAll(Intervals intervals) {
+			for (int i = 0; i < intervals.size(); i++) {
+				add(intervals.getContig(i));
+				add(intervals.getValue(i));
+			}
+		}
+
+		int indexOf(String string) {
+			return string == null ? -1 : indexes.get(string);
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package pl.genebeam.pseudogenes.helpers;
+
+import java.util.Arrays;
+
+import htsjdk.samtools.QueryInterval;
+import htsjdk.samtools.SAMRecord;
+
+/**
+ * A group of consecutive scan intervals of one contig scanned by a single
+ * worker in the sharded scan mode. Reads overlapping intervals of two shards
+ * are returned by both index queries, so a read is processed only by the shard
+ * holding the first interval it overlaps.
+ *
+ * @author pstawinski
+ *
+ */
+public class BamShard {
+	private final int referenceIndex;
+	private final String contig;
+	/**
+	 * all intervals of the contig, sorted and disjoint; shared between shards
+	 */
+	private final int[] contigStarts, contigEnds;
+	/**
+	 * indexes of the first and the last interval of this shard (inclusive)
+	 */
+	private final int first, last;
+
+	public BamShard(int referenceIndex, String contig, int[] contigStarts, int[] contigEnds, int first, int last) {
+		super();
+		this.referenceIndex = referenceIndex;
+		this.contig = contig;
+		this.contigStarts = contigStarts;
+		this.contigEnds = contigEnds;
+		this.first = first;
+		this.last = last;
+	}
+
+	public int getReferenceIndex() {
+		return referenceIndex;
+	}
+
+	public String getContig() {
+		return contig;
+	}
+
+	public int getStart() {
+		return contigStarts[first];
+	}
+
+	public int getEnd() {
+		return contigEnds[last];
+	}
+
+	public QueryInterval[] getQueryIntervals() {
+		QueryInterval[] intervals = new QueryInterval[last - first + 1];
+		for (int i = first; i <= last; i++) {
+			intervals[i - first] = new QueryInterval(referenceIndex, contigStarts[i], contigEnds[i]);
+		}
+		return intervals;
+	}
+
+	public boolean owns(SAMRecord read) {
+		int alignmentStart = read.getAlignmentStart();
+		// first interval ending at or after the read start
+		int idx = Arrays.binarySearch(contigEnds, alignmentStart);
+		if (idx < 0) {
+			idx = -idx - 1;
+		}
+		if (idx == contigEnds.length || contigStarts[idx] > read.getAlignmentEnd()) {
+			// the read does not overlap anything, it is here only because of
+			// the index granularity
+			return false;
+		}
+		return idx >= first && idx <= last;
+	}
+
+	@Override
+	public String toString() {
+		return contig + ":" + getStart() + "-" + getEnd() + " (" + (last - first + 1) + " intervals)";
+	}
+}
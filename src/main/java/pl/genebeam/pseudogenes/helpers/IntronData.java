@@ -19,10 +19,24 @@ public class IntronData implements Comparable<IntronData> {
 	private Integer readsSupportingRemovalByIS;
 	private Integer readsSupportingRemovalByAlignment;
 	private List<AlignmentResult> alignmentResults;
+	/**
+	 * reads not kept (and for the alignment not aligned) because the intron
+	 * had already as many supporting reads as the saturation cap
+	 */
+	private Integer readsSkippedAfterSaturationByIS;
+	private Integer readsSkippedAfterSaturationByAlignment;
 
 	public IntronData(int idx, int readsSupportingRemovalByIS, int readsSupportingRemovalByAlignment,
 			Collection<AlignmentResult> alignmentResults) {
+		this(idx, readsSupportingRemovalByIS, readsSupportingRemovalByAlignment, alignmentResults, 0, 0);
+	}
+
+	public IntronData(int idx, int readsSupportingRemovalByIS, int readsSupportingRemovalByAlignment,
+			Collection<AlignmentResult> alignmentResults, int readsSkippedAfterSaturationByIS,
+			int readsSkippedAfterSaturationByAlignment) {
 		this.index = idx;
+		this.readsSkippedAfterSaturationByIS = readsSkippedAfterSaturationByIS;
+		this.readsSkippedAfterSaturationByAlignment = readsSkippedAfterSaturationByAlignment;
 		this.readsSupportingRemovalByAlignment = readsSupportingRemovalByAlignment;
 		this.readsSupportingRemovalByIS = readsSupportingRemovalByIS;
 		if (CollectionUtils.isNotEmpty(alignmentResults)) {
@@ -46,6 +60,14 @@ public class IntronData implements Comparable<IntronData> {
 		return Optional.ofNullable(readsSupportingRemovalByIS).orElse(0);
 	}
 
+	public Integer getReadsSkippedAfterSaturationByIS() {
+		return Optional.ofNullable(readsSkippedAfterSaturationByIS).orElse(0);
+	}
+
+	public Integer getReadsSkippedAfterSaturationByAlignment() {
+		return Optional.ofNullable(readsSkippedAfterSaturationByAlignment).orElse(0);
+	}
+
 	public String getTranscriptionName() {
 		return transcriptionName;
 	}
@@ -66,6 +88,14 @@ public class IntronData implements Comparable<IntronData> {
 		this.readsSupportingRemovalByIS = readsSupportingRemovalByIS;
 	}
 
+	public void setReadsSkippedAfterSaturationByIS(Integer readsSkippedAfterSaturationByIS) {
+		this.readsSkippedAfterSaturationByIS = readsSkippedAfterSaturationByIS;
+	}
+
+	public void setReadsSkippedAfterSaturationByAlignment(Integer readsSkippedAfterSaturationByAlignment) {
+		this.readsSkippedAfterSaturationByAlignment = readsSkippedAfterSaturationByAlignment;
+	}
+
 	public void setTranscriptionName(String transcriptionName) {
 		this.transcriptionName = transcriptionName;
 	}
@@ -0,0 +1,139 @@
+package pl.genebeam.pseudogenes.helpers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Reads supporting the removal of every intron of a transcript: a counter per
+ * intron and optionally some of the reads as exemplars. An instance is
+ * confined to one worker thread, instances of all workers are merged at the
+ * end of the scan. Kept exemplars are the smallest ones in the given order,
+ * so the merged result does not depend on how reads were spread over the
+ * workers.
+ *
+ * @author pstawinski
+ *
+ */
+public class IntronEvidence<T> {
+	private final long[] counts;
+	/**
+	 * maximal number of exemplars per intron, 0 keeps all, -1 keeps none
+	 */
+	private final int reservoirSize;
+	private final Comparator<? super T> order;
+	/**
+	 * per intron, created on the first exemplar; a bounded list is trimmed to
+	 * reservoirSize whenever it doubles
+	 */
+	private final List<List<T>> exemplars;
+
+	private IntronEvidence(int numberOfIntrons, int reservoirSize, Comparator<? super T> order) {
+		this.counts = new long[numberOfIntrons];
+		this.reservoirSize = reservoirSize;
+		this.order = order;
+		this.exemplars = reservoirSize >= 0 ? new ArrayList<>(Collections.nCopies(numberOfIntrons, (List<T>) null))
+				: null;
+	}
+
+	/**
+	 * Evidence keeping only the counts
+	 */
+	public static <T> IntronEvidence<T> countsOnly(int numberOfIntrons) {
+		return new IntronEvidence<>(numberOfIntrons, -1, null);
+	}
+
+	/**
+	 * Evidence keeping the reservoirSize smallest exemplars of every intron,
+	 * all of them if reservoirSize is 0
+	 */
+	public static <T> IntronEvidence<T> withExemplars(int numberOfIntrons, int reservoirSize,
+			Comparator<? super T> order) {
+		return new IntronEvidence<>(numberOfIntrons, Math.max(0, reservoirSize), order);
+	}
+
+	public void add(int intron) {
+		counts[intron]++;
+	}
+
+	public void add(int intron, T exemplar) {
+		counts[intron]++;
+		if (exemplars != null) {
+			intronExemplars(intron).add(exemplar);
+			trim(intron, 2 * reservoirSize);
+		}
+	}
+
+	/**
+	 * Add counts and exemplars of other evidence of the same transcript
+	 */
+	public void mergeFrom(IntronEvidence<T> other) {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] += other.counts[i];
+			if (exemplars != null && other.exemplars != null && other.exemplars.get(i) != null) {
+				intronExemplars(i).addAll(other.exemplars.get(i));
+				trim(i, 2 * reservoirSize);
+			}
+		}
+	}
+
+	private List<T> intronExemplars(int intron) {
+		List<T> list = exemplars.get(intron);
+		if (list == null) {
+			list = new ArrayList<>();
+			exemplars.set(intron, list);
+		}
+		return list;
+	}
+
+	/**
+	 * Keep the reservoirSize smallest exemplars once there are more than
+	 * limit of them
+	 */
+	private void trim(int intron, int limit) {
+		List<T> list = exemplars.get(intron);
+		if (reservoirSize > 0 && list.size() > limit) {
+			list.sort(order);
+			list.subList(reservoirSize, list.size()).clear();
+		}
+	}
+
+	public long getCount(int intron) {
+		return counts[intron];
+	}
+
+	public boolean isCovered(int intron) {
+		return counts[intron] > 0;
+	}
+
+	/**
+	 * @return number of introns with any evidence
+	 */
+	public int getNumberOfCovered() {
+		int covered = 0;
+		for (int i = 0; i < counts.length; i++) {
+			if (isCovered(i)) {
+				covered++;
+			}
+		}
+		return covered;
+	}
+
+	/**
+	 * @return exemplars kept for the intron, in the exemplar order
+	 */
+	public List<T> getExemplars(int intron) {
+		if (exemplars == null || exemplars.get(intron) == null) {
+			return Collections.emptyList();
+		}
+		trim(intron, reservoirSize);
+		List<T> list = new ArrayList<>(exemplars.get(intron));
+		list.sort(order);
+		return list;
+	}
+
+	public int getNumberOfIntrons() {
+		return counts.length;
+	}
+}
@@ -0,0 +1,200 @@
+package pl.genebeam.pseudogenes.helpers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * All unique junction events of the loaded transcripts. Every (contig,
+ * junction, side, neighbour exon boundary) is stored once together with the
+ * isoforms using it.
+ * 
+ * @author pstawinski
+ *
+ */
+public class JunctionCatalog {
+	/**
+	 * the same limit as in the clipped reads analysis, smaller introns are not
+	 * considered
+	 */
+	public static final int MIN_INTRON_SIZE = 10;
+
+	private final List<JunctionEvent> events;
+	private final Map<Transcript, TranscriptJunctions> byTranscript;
+
+	/**
+	 * events of one transcript sorted by junction position
+	 */
+	private static final class TranscriptJunctions {
+		private final int[] positions;
+		private final JunctionEvent[] events;
+
+		TranscriptJunctions(List<JunctionEvent> events) {
+			this.events = events.toArray(new JunctionEvent[events.size()]);
+			Arrays.sort(this.events, (a, b) -> Integer.compare(a.getJunction(), b.getJunction()));
+			this.positions = new int[this.events.length];
+			for (int i = 0; i < this.events.length; i++) {
+				positions[i] = this.events[i].getJunction();
+			}
+		}
+	}
+
+	private static final class Key {
+		private final String contig;
+		private final int junction;
+		private final boolean exonStart;
+		private final int neighbourExonBoundary;
+
+		Key(String contig, int junction, boolean exonStart, int neighbourExonBoundary) {
+			this.contig = contig;
+			this.junction = junction;
+			this.exonStart = exonStart;
+			this.neighbourExonBoundary = neighbourExonBoundary;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(contig, junction, exonStart, neighbourExonBoundary);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return junction == other.junction && exonStart == other.exonStart
+					&& neighbourExonBoundary == other.neighbourExonBoundary && contig.equals(other.contig);
+		}
+	}
+
+	private JunctionCatalog(List<JunctionEvent> events, Map<Transcript, TranscriptJunctions> byTranscript) {
+		this.events = events;
+		this.byTranscript = byTranscript;
+	}
+
+	public static JunctionCatalog build(Collection<Transcript> transcripts) {
+		List<JunctionEvent> events = new ArrayList<>();
+		Map<Key, JunctionEvent> unique = new HashMap<>();
+		// transcripts are equal by name, the same name may be annotated at
+		// several loci
+		Map<Transcript, TranscriptJunctions> byTranscript = new IdentityHashMap<>();
+
+		for (Transcript transcript : transcripts) {
+			List<JunctionEvent> transcriptEvents = new ArrayList<>();
+			for (int junction : transcript.getJunctionSites()) {
+				boolean exonStart = transcript.isExonStartPoint(junction);
+				int intronIndex;
+				int neighbourExonBoundary;
+				if (exonStart) {
+					intronIndex = transcript.exonIndexAt(junction) - 1;
+					if (intronIndex < 0) {
+						// first exone, the intron would be before the gene
+						continue;
+					}
+					neighbourExonBoundary = transcript.getExonEnd(intronIndex);
+				} else {
+					intronIndex = transcript.intronIndexAt(junction);
+					if (intronIndex == -1) {
+						// last exone, the intron would be after the gene
+						continue;
+					}
+					neighbourExonBoundary = transcript.getExonStart(intronIndex + 1);
+				}
+				if (transcript.getIntronEnd(intronIndex) - transcript.getIntronStart(intronIndex) < MIN_INTRON_SIZE) {
+					continue;
+				}
+
+				Key key = new Key(transcript.getChr(), junction, exonStart, neighbourExonBoundary);
+				JunctionEvent event = unique.get(key);
+				if (event == null) {
+					event = new JunctionEvent(events.size(), transcript.getChr(), junction, exonStart,
+							neighbourExonBoundary);
+					unique.put(key, event);
+					events.add(event);
+				}
+				event.addTranscript(transcript, intronIndex);
+				transcriptEvents.add(event);
+			}
+			if (!transcriptEvents.isEmpty()) {
+				byTranscript.put(transcript, new TranscriptJunctions(transcriptEvents));
+			}
+		}
+		return new JunctionCatalog(events, byTranscript);
+	}
+
+	/**
+	 * Append to out events of the transcript with junction in [from, to) which
+	 * are not yet in out
+	 */
+	public void eventsIn(Transcript transcript, int from, int to, List<JunctionEvent> out) {
+		TranscriptJunctions junctions = byTranscript.get(transcript);
+		if (junctions == null) {
+			return;
+		}
+		int idx = Arrays.binarySearch(junctions.positions, from);
+		if (idx < 0) {
+			idx = -idx - 1;
+		} else {
+			// several events may share the position, start from the first
+			while (idx > 0 && junctions.positions[idx - 1] == from) {
+				idx--;
+			}
+		}
+		for (; idx < junctions.positions.length && junctions.positions[idx] < to; idx++) {
+			JunctionEvent event = junctions.events[idx];
+			if (!containsSame(out, event)) {
+				out.add(event);
+			}
+		}
+	}
+
+	private static boolean containsSame(List<JunctionEvent> events, JunctionEvent event) {
+		for (int i = 0; i < events.size(); i++) {
+			if (events.get(i) == event) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public JunctionEvent getEvent(int id) {
+		return events.get(id);
+	}
+
+	public int size() {
+		return events.size();
+	}
+
+	/**
+	 * @return hash of all events in the order of their ids, equal for
+	 *         catalogs built from the same annotation
+	 */
+	public long fingerprint() {
+		long hash = events.size();
+		for (JunctionEvent event : events) {
+			hash = 31 * hash + event.getContig().hashCode();
+			hash = 31 * hash + event.getJunction();
+			hash = 31 * hash + (event.isExonStart() ? 1 : 0);
+			hash = 31 * hash + event.getNeighbourExonBoundary();
+		}
+		return hash;
+	}
+
+	/**
+	 * @return number of (transcript, junction) pairs represented by the events
+	 */
+	public int numberOfTranscriptJunctions() {
+		int count = 0;
+		for (JunctionEvent event : events) {
+			count += event.getNumberOfTranscripts();
+		}
+		return count;
+	}
+}
@@ -0,0 +1,160 @@
+package pl.genebeam.pseudogenes.helpers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import htsjdk.samtools.SAMRecord;
+
+/**
+ * Counts clipped reads crossing every junction event and holds their clipped
+ * sequences back until the event has at least minClips of them. Most clips are
+ * sequencing or alignment noise seen once at a junction, these are never
+ * aligned. At most minClips - 1 clips are buffered per event.
+ *
+ * @author pstawinski
+ *
+ */
+public class JunctionClipCounter {
+	private static final int LOCK_STRIPES = 1024;
+
+	/**
+	 * a clip waiting for its event to reach the minimal count
+	 */
+	public static final class PendingClip {
+		private final byte[] floatingSequence;
+		private final String readName;
+		private final String readContig;
+		private final int readStart;
+		private final List<Transcript> transcripts;
+
+		PendingClip(byte[] floatingSequence, String readName, String readContig, int readStart,
+				List<Transcript> transcripts) {
+			this.floatingSequence = floatingSequence;
+			this.readName = readName;
+			this.readContig = readContig;
+			this.readStart = readStart;
+			this.transcripts = transcripts;
+		}
+
+		public byte[] getFloatingSequence() {
+			return floatingSequence;
+		}
+
+		public String getReadName() {
+			return readName;
+		}
+
+		public String getReadContig() {
+			return readContig;
+		}
+
+		public int getReadStart() {
+			return readStart;
+		}
+
+		/**
+		 * @return transcripts covered by the read
+		 */
+		public List<Transcript> getTranscripts() {
+			return transcripts;
+		}
+	}
+
+	private final int minClips;
+	/**
+	 * per event id, guarded by the lock stripe of the event
+	 */
+	private final int[] counts;
+	private final List<List<PendingClip>> pending;
+	private final Object[] locks = new Object[LOCK_STRIPES];
+
+	private final LongAdder buffered = new LongAdder();
+	private final LongAdder released = new LongAdder();
+
+	public JunctionClipCounter(int numberOfEvents, int minClips) {
+		this.minClips = minClips;
+		this.counts = new int[numberOfEvents];
+		this.pending = new ArrayList<>(Collections.nCopies(numberOfEvents, (List<PendingClip>) null));
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * Count a clip of the read at the event.
+	 *
+	 * @return null if the clip was buffered, otherwise clips buffered before
+	 *         which have to be aligned now together with this one (empty if
+	 *         the event passed the minimal count earlier)
+	 */
+	public List<PendingClip> count(int eventId, byte[] readBases, int floatingOffset, int floatingLength,
+			SAMRecord read, Collection<Transcript> transcripts) {
+		List<PendingClip> release;
+		synchronized (locks[eventId % LOCK_STRIPES]) {
+			int count = ++counts[eventId];
+			if (count < minClips) {
+				List<PendingClip> eventPending = pending.get(eventId);
+				if (eventPending == null) {
+					eventPending = new ArrayList<>(minClips - 1);
+					pending.set(eventId, eventPending);
+				}
+				eventPending.add(new PendingClip(
+						Arrays.copyOfRange(readBases, floatingOffset, floatingOffset + floatingLength),
+						read.getReadName(), read.getContig(), read.getStart(), new ArrayList<>(transcripts)));
+				buffered.increment();
+				return null;
+			}
+			if (count > minClips) {
+				return Collections.emptyList();
+			}
+			release = pending.get(eventId);
+			pending.set(eventId, null);
+		}
+		if (release == null) {
+			return Collections.emptyList();
+		}
+		released.add(release.size());
+		return release;
+	}
+
+	/**
+	 * @return number of clips buffered so far
+	 */
+	public long getBuffered() {
+		return buffered.sum();
+	}
+
+	/**
+	 * @return number of buffered clips released for alignment
+	 */
+	public long getReleased() {
+		return released.sum();
+	}
+
+	/**
+	 * @return number of events which reached the minimal count
+	 */
+	public int getSupportedEvents() {
+		int supported = 0;
+		for (int i = 0; i < counts.length; i++) {
+			synchronized (locks[i % LOCK_STRIPES]) {
+				if (counts[i] >= minClips) {
+					supported++;
+				}
+			}
+		}
+		return supported;
+	}
+
+	@Override
+	public String toString() {
+		long buffered = getBuffered();
+		long released = getReleased();
+		return "junctions with at least " + minClips + " clips: " + getSupportedEvents() + ", clips buffered "
+				+ buffered + ", released " + released + ", never aligned " + (buffered - released);
+	}
+}
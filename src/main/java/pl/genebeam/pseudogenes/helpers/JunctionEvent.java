@@ -0,0 +1,101 @@
+package pl.genebeam.pseudogenes.helpers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A unique junction of the annotation as seen by the clipped reads analysis:
+ * a junction site together with the boundary of the neighbour exon a floating
+ * sequence should align to. Isoforms sharing the junction and the neighbour
+ * exon share one event, so a clipped read is aligned once per event.
+ * 
+ * @author pstawinski
+ *
+ */
+public class JunctionEvent {
+	private final int id;
+	private final String contig;
+	private final int junction;
+	/**
+	 * true if the junction is an exon start, the floating sequence is then the
+	 * part of the read before the junction and should align to the end of the
+	 * previous exon; otherwise the junction is an intron start and the part
+	 * after it should align to the start of the next exon
+	 */
+	private final boolean exonStart;
+	/**
+	 * end (exclusive) of the previous exon or start of the next exon
+	 */
+	private final int neighbourExonBoundary;
+
+	private final List<Transcript> transcripts = new ArrayList<>();
+	private final List<Integer> intronIndexes = new ArrayList<>();
+
+	public JunctionEvent(int id, String contig, int junction, boolean exonStart, int neighbourExonBoundary) {
+		super();
+		this.id = id;
+		this.contig = contig;
+		this.junction = junction;
+		this.exonStart = exonStart;
+		this.neighbourExonBoundary = neighbourExonBoundary;
+	}
+
+	void addTranscript(Transcript transcript, int intronIndex) {
+		transcripts.add(transcript);
+		intronIndexes.add(intronIndex);
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String getContig() {
+		return contig;
+	}
+
+	public int getJunction() {
+		return junction;
+	}
+
+	public boolean isExonStart() {
+		return exonStart;
+	}
+
+	public int getNeighbourExonBoundary() {
+		return neighbourExonBoundary;
+	}
+
+	/**
+	 * size of the intron possibly removed, between the junction and the
+	 * neighbour exon
+	 */
+	public int getIntronSize() {
+		return Math.abs(junction - neighbourExonBoundary);
+	}
+
+	public int getNumberOfTranscripts() {
+		return transcripts.size();
+	}
+
+	public Transcript getTranscript(int i) {
+		return transcripts.get(i);
+	}
+
+	/**
+	 * @return index of the possibly removed intron in the i-th transcript
+	 */
+	public int getIntronIndex(int i) {
+		return intronIndexes.get(i);
+	}
+
+	public List<Transcript> getTranscripts() {
+		return Collections.unmodifiableList(transcripts);
+	}
+
+	@Override
+	public String toString() {
+		return contig + ":" + junction + (exonStart ? " exon start, previous exon end " : " intron start, next exon start ")
+				+ neighbourExonBoundary + " " + transcripts;
+	}
+}
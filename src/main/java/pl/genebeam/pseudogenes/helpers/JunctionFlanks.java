@@ -0,0 +1,254 @@
+package pl.genebeam.pseudogenes.helpers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import pl.genebeam.utils.MappedFastaReference;
+
+/**
+ * Reference flanks of the neighbour exons of all junction events, fetched
+ * once per run so the clipped reads analysis does not touch the fasta. For an
+ * exon start event the flank holds [boundary - maxFloatingLength - 10,
+ * boundary], for an intron start event [boundary, boundary + maxFloatingLength
+ * + 5], where boundary is the end of the previous or the start of the next
+ * exon. Flanks of A/C/G/T only are packed 2 bits per base, others (N, soft
+ * masked bases) are kept raw.
+ *
+ * @author pstawinski
+ *
+ */
+public class JunctionFlanks {
+	private static final org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(JunctionFlanks.class);
+
+	private static final long MAGIC = 0x50534746_4c414e4bL; // PSGFLANK
+	private static final int VERSION = 2;
+
+	/**
+	 * bases added to the floating sequence length on the previous exon side
+	 * and on the next exon side
+	 */
+	public static final int EXON_START_EXTRA = 10;
+	public static final int INTRON_START_EXTRA = 5;
+
+	private static final byte[] BASES = { 'A', 'C', 'G', 'T' };
+	private static final byte[] CODES = new byte[256];
+	static {
+		Arrays.fill(CODES, (byte) -1);
+		for (int i = 0; i < BASES.length; i++) {
+			CODES[BASES[i]] = (byte) i;
+		}
+	}
+
+	private final int maxFloatingLength;
+	/**
+	 * per event id: 1-based reference position of the first flank base,
+	 * number of bases, null data if the flank is not available
+	 */
+	private final int[] flankStarts;
+	private final int[] flankLengths;
+	private final byte[][] flanks;
+	private final boolean[] packed;
+
+	private JunctionFlanks(int maxFloatingLength, int events) {
+		this.maxFloatingLength = maxFloatingLength;
+		this.flankStarts = new int[events];
+		this.flankLengths = new int[events];
+		this.flanks = new byte[events][];
+		this.packed = new boolean[events];
+	}
+
+	public static JunctionFlanks build(JunctionCatalog catalog, MappedFastaReference reference,
+			int maxFloatingLength) {
+		JunctionFlanks junctionFlanks = new JunctionFlanks(maxFloatingLength, catalog.size());
+		int missing = 0;
+		for (int id = 0; id < catalog.size(); id++) {
+			JunctionEvent event = catalog.getEvent(id);
+			int contigLength = reference.getContigLength(event.getContig());
+			if (contigLength == -1) {
+				missing++;
+				continue;
+			}
+			int start, end;
+			if (event.isExonStart()) {
+				start = Math.max(1, event.getNeighbourExonBoundary() - maxFloatingLength - EXON_START_EXTRA);
+				end = Math.min(contigLength, event.getNeighbourExonBoundary());
+			} else {
+				start = Math.max(1, event.getNeighbourExonBoundary());
+				end = Math.min(contigLength,
+						event.getNeighbourExonBoundary() + maxFloatingLength + INTRON_START_EXTRA);
+			}
+			if (start > end) {
+				missing++;
+				continue;
+			}
+			junctionFlanks.set(id, start, reference.getBases(event.getContig(), start, end));
+		}
+		if (missing > 0) {
+			log.warn("No reference flank for " + missing + " junctions, contigs missing in the reference");
+		}
+		return junctionFlanks;
+	}
+
+	private void set(int id, int start, byte[] bases) {
+		flankStarts[id] = start;
+		flankLengths[id] = bases.length;
+		byte[] packedBases = pack(bases);
+		if (packedBases != null) {
+			flanks[id] = packedBases;
+			packed[id] = true;
+		} else {
+			flanks[id] = bases;
+		}
+	}
+
+	/**
+	 * @return bases packed 2 bits per base, null if there is a base other
+	 *         than A, C, G, T
+	 */
+	private static byte[] pack(byte[] bases) {
+		byte[] packedBases = new byte[(bases.length + 3) / 4];
+		for (int i = 0; i < bases.length; i++) {
+			byte code = CODES[bases[i] & 0xff];
+			if (code == -1) {
+				return null;
+			}
+			packedBases[i >> 2] |= code << ((i & 3) << 1);
+		}
+		return packedBases;
+	}
+
+	/**
+	 * Copy to out the neighbour exon bases needed to align a floating sequence
+	 * of the given length: [boundary - floatingLength - 10, boundary] for an
+	 * exon start event, [boundary, boundary + floatingLength + 5] for an
+	 * intron start event.
+	 *
+	 * @return number of bases copied, -1 if the floating sequence is longer
+	 *         than the table was built for or the flank is out of the
+	 *         reference
+	 */
+	public int copyFlank(JunctionEvent event, int floatingLength, byte[] out) {
+		int id = event.getId();
+		if (flanks[id] == null || floatingLength > maxFloatingLength) {
+			return -1;
+		}
+		int start, length;
+		if (event.isExonStart()) {
+			start = event.getNeighbourExonBoundary() - floatingLength - EXON_START_EXTRA;
+			length = floatingLength + EXON_START_EXTRA + 1;
+		} else {
+			start = event.getNeighbourExonBoundary();
+			length = floatingLength + INTRON_START_EXTRA + 1;
+		}
+		int offset = start - flankStarts[id];
+		if (offset < 0 || offset + length > flankLengths[id]) {
+			return -1;
+		}
+
+		byte[] data = flanks[id];
+		if (packed[id]) {
+			for (int i = 0; i < length; i++) {
+				int position = offset + i;
+				out[i] = BASES[(data[position >> 2] >> ((position & 3) << 1)) & 3];
+			}
+		} else {
+			System.arraycopy(data, offset, out, 0, length);
+		}
+		return length;
+	}
+
+	/**
+	 * @return size of the buffer able to hold any flank copied by copyFlank
+	 */
+	public int getMaxFlankLength() {
+		return maxFloatingLength + Math.max(EXON_START_EXTRA, INTRON_START_EXTRA) + 1;
+	}
+
+	public int getMaxFloatingLength() {
+		return maxFloatingLength;
+	}
+
+	/**
+	 * @return number of bytes held by the flanks
+	 */
+	public long getDataSize() {
+		long size = 0;
+		for (byte[] flank : flanks) {
+			if (flank != null) {
+				size += flank.length;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Write the flanks, the catalog fingerprint and the reference dictionary
+	 * MD5, file length and modification time let read detect a file made for
+	 * other data
+	 */
+	public void write(File file, File referenceFile, String referenceDictionaryMd5, long catalogFingerprint)
+			throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeLong(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(referenceDictionaryMd5);
+			out.writeLong(referenceFile.length());
+			out.writeLong(referenceFile.lastModified());
+			out.writeInt(maxFloatingLength);
+			out.writeLong(catalogFingerprint);
+			for (int id = 0; id < flanks.length; id++) {
+				if (flanks[id] == null) {
+					out.writeInt(-1);
+					continue;
+				}
+				out.writeInt(flanks[id].length);
+				out.writeInt(flankStarts[id]);
+				out.writeInt(flankLengths[id]);
+				out.writeBoolean(packed[id]);
+				out.write(flanks[id]);
+			}
+		}
+	}
+
+	/**
+	 * Read flanks written for the same junction catalog, reference and
+	 * maximal floating length.
+	 *
+	 * @return null if the file was written for other data
+	 */
+	public static JunctionFlanks read(File file, JunctionCatalog catalog, File referenceFile,
+			String referenceDictionaryMd5, int maxFloatingLength) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readLong() != MAGIC || in.readInt() != VERSION) {
+				log.warn("Not a junction flanks file: " + file);
+				return null;
+			}
+			if (!in.readUTF().equals(referenceDictionaryMd5) || in.readLong() != referenceFile.length()
+					|| in.readLong() != referenceFile.lastModified() || in.readInt() != maxFloatingLength
+					|| in.readLong() != catalog.fingerprint()) {
+				log.warn("Junction flanks file " + file + " was built for other reference, annotation or read length");
+				return null;
+			}
+			JunctionFlanks junctionFlanks = new JunctionFlanks(maxFloatingLength, catalog.size());
+			for (int id = 0; id < catalog.size(); id++) {
+				int dataLength = in.readInt();
+				if (dataLength == -1) {
+					continue;
+				}
+				junctionFlanks.flankStarts[id] = in.readInt();
+				junctionFlanks.flankLengths[id] = in.readInt();
+				junctionFlanks.packed[id] = in.readBoolean();
+				junctionFlanks.flanks[id] = new byte[dataLength];
+				in.readFully(junctionFlanks.flanks[id]);
+			}
+			return junctionFlanks;
+		}
+	}
+}
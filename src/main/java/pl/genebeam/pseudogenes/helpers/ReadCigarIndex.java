@@ -0,0 +1,141 @@
+package pl.genebeam.pseudogenes.helpers;
+
+import java.util.Arrays;
+import java.util.List;
+
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMRecord;
+
+/**
+ * Coordinates of a single read built from one pass over its CIGAR: the
+ * aligned blocks kept in primitive arrays and the soft clipped ends. An
+ * instance is reset for every read and reused, so one per thread is enough.
+ *
+ * @author pstawinski
+ *
+ */
+public class ReadCigarIndex {
+	private int[] blockReadStarts = new int[8];
+	private int[] blockReferenceStarts = new int[8];
+	private int[] blockLengths = new int[8];
+	private int blocks;
+
+	private boolean softClipped;
+	private boolean deletion;
+	private int softClippedLeftEnd;
+	private int softClippedRightStart;
+
+	public void reset(SAMRecord read) {
+		blocks = 0;
+		softClipped = false;
+		deletion = false;
+		softClippedLeftEnd = -1;
+		softClippedRightStart = -1;
+
+		int readPosition = 1;
+		int referencePosition = read.getAlignmentStart();
+		// length of all CIGAR elements before the current one, this is how
+		// the clipped reads analysis always located the right soft clip
+		int cigarPosition = 0;
+		List<CigarElement> elements = read.getCigar().getCigarElements();
+		for (int i = 0; i < elements.size(); i++) {
+			CigarElement element = elements.get(i);
+			CigarOperator operator = element.getOperator();
+			int length = element.getLength();
+			switch (operator) {
+			case M:
+			case EQ:
+			case X:
+				addBlock(readPosition, referencePosition, length);
+				readPosition += length;
+				referencePosition += length;
+				break;
+			case S:
+				if (cigarPosition == 0) {
+					softClippedLeftEnd = length;
+				} else {
+					softClippedRightStart = cigarPosition;
+				}
+				softClipped = true;
+				readPosition += length;
+				break;
+			case I:
+				readPosition += length;
+				break;
+			case D:
+				deletion = true;
+				referencePosition += length;
+				break;
+			case N:
+				referencePosition += length;
+				break;
+			default:
+				// H, P
+				break;
+			}
+			cigarPosition += length;
+		}
+	}
+
+	private void addBlock(int readStart, int referenceStart, int length) {
+		if (blocks == blockLengths.length) {
+			blockReadStarts = Arrays.copyOf(blockReadStarts, blocks * 2);
+			blockReferenceStarts = Arrays.copyOf(blockReferenceStarts, blocks * 2);
+			blockLengths = Arrays.copyOf(blockLengths, blocks * 2);
+		}
+		blockReadStarts[blocks] = readStart;
+		blockReferenceStarts[blocks] = referenceStart;
+		blockLengths[blocks] = length;
+		blocks++;
+	}
+
+	/**
+	 * Same as SAMRecord.getReadPositionAtReferencePosition(position, true)
+	 *
+	 * @return 1-based position in the read of the base aligned to the
+	 *         reference position, of the last aligned base before it if the
+	 *         position is deleted, 0 if the position is not covered by the
+	 *         aligned blocks
+	 */
+	public int readPositionAt(int position) {
+		if (position <= 0) {
+			return 0;
+		}
+		int lastAlignmentOffset = 0;
+		for (int i = 0; i < blocks; i++) {
+			if (blockReferenceStarts[i] + blockLengths[i] - 1 >= position) {
+				if (position < blockReferenceStarts[i]) {
+					// in a deletion (or before the first block)
+					return lastAlignmentOffset;
+				}
+				return position - blockReferenceStarts[i] + blockReadStarts[i];
+			}
+			lastAlignmentOffset = blockReadStarts[i] + blockLengths[i] - 1;
+		}
+		return 0;
+	}
+
+	public boolean isSoftClipped() {
+		return softClipped;
+	}
+
+	public boolean hasDeletion() {
+		return deletion;
+	}
+
+	/**
+	 * @return length of the left soft clip, -1 if there is none
+	 */
+	public int getSoftClippedLeftEnd() {
+		return softClippedLeftEnd;
+	}
+
+	/**
+	 * @return start of the right soft clip counted over all CIGAR elements
+	 *         before it, -1 if there is none
+	 */
+	public int getSoftClippedRightStart() {
+		return softClippedRightStart;
+	}
+}
@@ -0,0 +1,218 @@
+package pl.genebeam.pseudogenes.helpers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import htsjdk.samtools.SAMRecord;
+
+/**
+ * Bounded producer/consumer pipeline: the decoder stage (the calling thread)
+ * fills batches of reads, a bounded queue feeds them to the worker pool and
+ * processed batches are recycled back to the decoder. At most queueDepth
+ * batches wait in the queue, one more is held by every worker and one by the
+ * decoder: queueDepth + workers + 1 batches exist at any time, so the heap
+ * stays flat regardless of the input size and a slow worker pool stalls the
+ * decoder instead of buffering reads.
+ *
+ * @author pstawinski
+ *
+ */
+public class ReadPipeline {
+	private static final org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(ReadPipeline.class);
+
+	private static final int LOG_EVERY_BATCHES = 1000;
+
+	private static final class Batch {
+		private final SAMRecord[] reads;
+		private int size;
+
+		Batch(int batchSize) {
+			this.reads = new SAMRecord[batchSize];
+		}
+	}
+
+	/**
+	 * marks the end of the input, one per worker
+	 */
+	private static final Batch END = new Batch(0);
+
+	private final int workers;
+	private final int queueDepth;
+	private final int batchSize;
+
+	private final BlockingQueue<Batch> decoded;
+	private final BlockingQueue<Batch> free;
+
+	private final AtomicLong readsDecoded = new AtomicLong();
+	private final AtomicLong batchesDecoded = new AtomicLong();
+	private final AtomicLong batchesProcessed = new AtomicLong();
+	/**
+	 * time the decoder waited for a free batch (workers too slow) and the
+	 * workers waited for a decoded batch (decoder too slow)
+	 */
+	private final AtomicLong decoderStallNanos = new AtomicLong();
+	private final AtomicLong workersStallNanos = new AtomicLong();
+
+	private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+	public ReadPipeline(int workers, int queueDepth, int batchSize) {
+		if (workers < 1 || queueDepth < 1 || batchSize < 1) {
+			throw new IllegalArgumentException("Workers, queue depth and batch size have to be positive, got: "
+					+ workers + ", " + queueDepth + ", " + batchSize);
+		}
+		this.workers = workers;
+		this.queueDepth = queueDepth;
+		this.batchSize = batchSize;
+		// end markers wait for free places as batches do
+		this.decoded = new ArrayBlockingQueue<>(queueDepth);
+		int batches = queueDepth + workers + 1;
+		this.free = new ArrayBlockingQueue<>(batches);
+		for (int i = 0; i < batches; i++) {
+			free.add(new Batch(batchSize));
+		}
+	}
+
+	/**
+	 * Decode all reads from the source on the calling thread and process them
+	 * with the consumer on the worker pool. Returns when all reads are
+	 * processed.
+	 */
+	public void run(Iterator<SAMRecord> source, Consumer<SAMRecord> consumer) throws IOException {
+		List<Thread> workerThreads = new ArrayList<>(workers);
+		for (int i = 0; i < workers; i++) {
+			Thread worker = new Thread(() -> work(consumer), "pipeline-worker-" + i);
+			worker.setDaemon(true);
+			worker.start();
+			workerThreads.add(worker);
+		}
+
+		try {
+			try {
+				decode(source);
+			} finally {
+				for (int i = 0; i < workers; i++) {
+					decoded.put(END);
+				}
+			}
+			for (Thread worker : workerThreads) {
+				worker.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			workerThreads.forEach(Thread::interrupt);
+			throw new IOException("Read pipeline interrupted", e);
+		}
+
+		if (failure.get() != null) {
+			throw new IOException("Read pipeline worker failed", failure.get());
+		}
+		log.debug("Pipeline finished: " + this);
+	}
+
+	private void decode(Iterator<SAMRecord> source) throws InterruptedException {
+		while (source.hasNext() && failure.get() == null) {
+			Batch batch = takeTimed(free, decoderStallNanos);
+			int size = 0;
+			while (size < batchSize && source.hasNext()) {
+				batch.reads[size++] = source.next();
+			}
+			batch.size = size;
+			readsDecoded.addAndGet(size);
+			decoded.put(batch);
+
+			if (batchesDecoded.incrementAndGet() % LOG_EVERY_BATCHES == 0) {
+				log.debug("Pipeline: " + this);
+			}
+		}
+	}
+
+	private void work(Consumer<SAMRecord> consumer) {
+		try {
+			while (true) {
+				Batch batch = takeTimed(decoded, workersStallNanos);
+				if (batch == END) {
+					return;
+				}
+				try {
+					if (failure.get() == null) {
+						for (int i = 0; i < batch.size; i++) {
+							consumer.accept(batch.reads[i]);
+						}
+					}
+				} catch (Throwable t) {
+					failure.compareAndSet(null, t);
+				} finally {
+					// let processed reads be collected before the batch is
+					// reused
+					Arrays.fill(batch.reads, 0, batch.size, null);
+					batch.size = 0;
+					batchesProcessed.incrementAndGet();
+					free.put(batch);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static Batch takeTimed(BlockingQueue<Batch> queue, AtomicLong stallNanos) throws InterruptedException {
+		Batch batch = queue.poll();
+		if (batch == null) {
+			long waitStart = System.nanoTime();
+			batch = queue.take();
+			stallNanos.addAndGet(System.nanoTime() - waitStart);
+		}
+		return batch;
+	}
+
+	/**
+	 * @return number of decoded batches waiting for a worker
+	 */
+	public int getDecodedQueueOccupancy() {
+		return decoded.size();
+	}
+
+	/**
+	 * @return number of recycled batches waiting for the decoder
+	 */
+	public int getFreeQueueOccupancy() {
+		return free.size();
+	}
+
+	public long getReadsDecoded() {
+		return readsDecoded.get();
+	}
+
+	public long getBatchesDecoded() {
+		return batchesDecoded.get();
+	}
+
+	public long getBatchesProcessed() {
+		return batchesProcessed.get();
+	}
+
+	public long getDecoderStallMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(decoderStallNanos.get());
+	}
+
+	public long getWorkersStallMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(workersStallNanos.get());
+	}
+
+	@Override
+	public String toString() {
+		return "decoded queue " + getDecodedQueueOccupancy() + "/" + queueDepth + ", free batches "
+				+ getFreeQueueOccupancy() + ", reads decoded " + getReadsDecoded() + ", batches decoded/processed "
+				+ getBatchesDecoded() + "/" + getBatchesProcessed() + ", decoder stalled " + getDecoderStallMillis()
+				+ " ms, workers stalled " + getWorkersStallMillis() + " ms";
+	}
+}
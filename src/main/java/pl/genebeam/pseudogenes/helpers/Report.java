@@ -5,15 +5,17 @@ import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.stream.Collectors;
 
 import org.apache.commons.collections4.CollectionUtils;
@@ -25,43 +27,79 @@ import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.ComparisonChain;
 
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.hash.TIntHashSet;
 import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.reference.ReferenceSequenceFile;
 import pl.genebeam.pseudogenes.model.AlignmentResult;
 import pl.genebeam.pseudogenes.model.IdentifiedPseudogene;
 import pl.genebeam.pseudogenes.model.PositionWithEvidence;
 import pl.genebeam.pseudogenes.model.ReadSummary;
+import pl.genebeam.utils.MappedFastaReference;
 import pl.genebeam.utils.TxNameToGeneName;
 
 public class Report {
 	private static final org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(Report.class);
 
 	private final static NumberFormat formatter = new DecimalFormat("#0.00");
-	private Map<Transcript, TranscriptStats> transcriptStats = new HashMap<>();
-	private Map<Transcript, Collection<String>> disconcordances = new HashMap<>();
-
-	private Map<Transcript, Collection<String>> disconcordancesAbysov = new HashMap<>();
-	private Map<Transcript, Boolean> abysovGene = new HashMap<>();
+	/**
+	 * evidence of every worker thread by transcript id, filled without any
+	 * sharing during the scan
+	 */
+	private final ThreadLocal<TIntObjectHashMap<TranscriptStats>> workerStats = ThreadLocal
+			.withInitial(this::newWorkerStats);
+	private final List<TIntObjectHashMap<TranscriptStats>> allWorkerStats = new ArrayList<>();
+	/**
+	 * merged evidence indexed by transcript id, so in genomic order; null
+	 * slots for transcripts without evidence
+	 */
+	private final TranscriptStats[] transcriptStats;
+	/**
+	 * annotations of transcripts by transcript id, as the evidence, so two
+	 * transcripts sharing a name are kept apart
+	 */
+	private TIntObjectHashMap<Collection<String>> disconcordances = new TIntObjectHashMap<>();
+
+	private TIntObjectHashMap<Collection<String>> disconcordancesAbysov = new TIntObjectHashMap<>();
+	private TIntObjectHashMap<Boolean> abysovGene = new TIntObjectHashMap<>();
 
 	private final String TX_NAME_DEBUG_POINT = "NR_026803";
 	private Transcript debugTranscript;
 
 	private TxNameToGeneName txNameToGeneName;
 
-	private Set<Transcript> referencePseudogenes = new HashSet<>();
-
-	private Map<Transcript, List<PositionWithEvidence>> possiblePositions = new HashMap<>();
-
-	public Report(TxNameToGeneName txNameToGeneName) {
+	private TIntHashSet referencePseudogenes = new TIntHashSet();
+
+	private TIntObjectHashMap<List<PositionWithEvidence>> possiblePositions = new TIntObjectHashMap<>();
+
+	/**
+	 * supporting reads kept per intron and method, 0 keeps all
+	 */
+	private final int saturationCap;
+	/**
+	 * with a saturation cap, by transcript id and intron: an upper bound of
+	 * the position of the cap-th smallest read supporting the removal by
+	 * alignment, the smallest one published by any worker; clips of reads
+	 * starting after it cannot be kept and need not be aligned
+	 */
+	private final AtomicReferenceArray<AtomicIntegerArray> saturationBounds;
+
+	/**
+	 * @param numberOfTranscripts
+	 *            number of transcripts numbered by Transcript.sortAndNumber
+	 */
+	public Report(TxNameToGeneName txNameToGeneName, int numberOfTranscripts, int saturationCap) {
 		this.txNameToGeneName = txNameToGeneName;
+		this.transcriptStats = new TranscriptStats[numberOfTranscripts];
+		this.saturationCap = saturationCap;
+		this.saturationBounds = saturationCap > 0 ? new AtomicReferenceArray<>(numberOfTranscripts) : null;
 	}
 
 	public String toString() {
-		List<Entry<Transcript, TranscriptStats>> sorted = transcriptStats.entrySet().stream()
+		List<TranscriptStats> sorted = getTranscriptStats().stream()
 				.sorted((a, b) -> ComparisonChain.start()
-						.compare(a.getValue().getFracIntronesCoveredCombined(),
-								b.getValue().getFracIntronesCoveredCombined())
-						.compare(a.getValue().getNumberOfIntrons(), b.getValue().getNumberOfIntrons()).result())
+						.compare(a.getFracIntronesCoveredCombined(),
+								b.getFracIntronesCoveredCombined())
+						.compare(a.getNumberOfIntrons(), b.getNumberOfIntrons()).result())
 				.collect(Collectors.toList());
 
 		StringBuilder sb = new StringBuilder();
@@ -69,9 +107,9 @@ public class Report {
 		// remove duplicated, leave only the most important one
 		Collections.reverse(sorted);
 		Set<String> geneNameUniqueness = new HashSet<>();
-		for (Iterator<Entry<Transcript, TranscriptStats>> iterator = sorted.iterator(); iterator.hasNext();) {
-			Entry<Transcript, TranscriptStats> entry = iterator.next();
-			if (geneNameUniqueness.add(entry.getKey().getGene())) {
+		for (Iterator<TranscriptStats> iterator = sorted.iterator(); iterator.hasNext();) {
+			TranscriptStats entry = iterator.next();
+			if (geneNameUniqueness.add(entry.getTranscript().getGene())) {
 				// it's ok, we see this gene for the first time
 			} else {
 				iterator.remove();
@@ -79,41 +117,41 @@ public class Report {
 		}
 
 		Collections.reverse(sorted);
-		for (Entry<Transcript, TranscriptStats> tsStats : sorted) {
+		for (TranscriptStats tsStats : sorted) {
 
 			boolean known = false;
-			if (CollectionUtils.isNotEmpty(disconcordances.get(tsStats.getKey()))
-					|| CollectionUtils.isNotEmpty(disconcordancesAbysov.get(tsStats.getKey()))
-					|| disconcordancesAbysov.get(tsStats.getKey()) != null
-					|| referencePseudogenes.contains(tsStats.getKey()))
+			if (CollectionUtils.isNotEmpty(disconcordances.get(tsStats.getTranscript().getId()))
+					|| CollectionUtils.isNotEmpty(disconcordancesAbysov.get(tsStats.getTranscript().getId()))
+					|| disconcordancesAbysov.get(tsStats.getTranscript().getId()) != null
+					|| referencePseudogenes.contains(tsStats.getTranscript().getId()))
 				known = true;
 
-			sb.append(tsStats.getKey().getGene() + ":" + tsStats.getKey().getName());
+			sb.append(tsStats.getTranscript().getGene() + ":" + tsStats.getTranscript().getName());
 			sb.append("\t");
 			sb.append(known ? "KNOWN" : "");
-			sb.append("\t" + tsStats.getKey().getChr() + ":" + tsStats.getKey().getTxStart() + "-"
-					+ tsStats.getKey().getTxEnd() + "\t");
-			sb.append("\t" + formatter.format(tsStats.getValue().getFracIntronesCoveredCombined()) + "\t");
-			sb.append("\t" + formatter.format(tsStats.getValue().getFracIntronesCoveredClip()) + "\t");
-			sb.append("\t" + formatter.format(tsStats.getValue().getFracIntronesCoveredIS()) + "\t");
+			sb.append("\t" + tsStats.getTranscript().getChr() + ":" + tsStats.getTranscript().getTxStart() + "-"
+					+ tsStats.getTranscript().getTxEnd() + "\t");
+			sb.append("\t" + formatter.format(tsStats.getFracIntronesCoveredCombined()) + "\t");
+			sb.append("\t" + formatter.format(tsStats.getFracIntronesCoveredClip()) + "\t");
+			sb.append("\t" + formatter.format(tsStats.getFracIntronesCoveredIS()) + "\t");
 
-			tsStats.getValue().supportingCount().stream().forEach(intron -> {
+			tsStats.supportingCount().stream().forEach(intron -> {
 				sb.append(" (");
 				sb.append(intron.getIndex() + ":");
 				sb.append(intron.getReadsSupportingRemovalByAlignment() + ",");
 				sb.append(intron.getReadsSupportingRemovalByIS() + ")");
 			});
 
-			sb.append("\tdisconcordances:" + disconcordances.get(tsStats.getKey()));
-			sb.append("\tabysov:" + disconcordancesAbysov.get(tsStats.getKey()));
-			sb.append("\tabysovGene:" + (disconcordancesAbysov.get(tsStats.getKey())) != null ? "KNOWN" : "");
-			sb.append("\tpseudoGene:" + (referencePseudogenes.contains(tsStats.getKey()) ? "KNOWN" : ""));
+			sb.append("\tdisconcordances:" + disconcordances.get(tsStats.getTranscript().getId()));
+			sb.append("\tabysov:" + disconcordancesAbysov.get(tsStats.getTranscript().getId()));
+			sb.append("\tabysovGene:" + (disconcordancesAbysov.get(tsStats.getTranscript().getId())) != null ? "KNOWN" : "");
+			sb.append("\tpseudoGene:" + (referencePseudogenes.contains(tsStats.getTranscript().getId()) ? "KNOWN" : ""));
 
 			sb.append("\n");
 		}
 
 		if (TX_NAME_DEBUG_POINT != null) {
-			TranscriptStats debugTranscriptSTats = getTranscriptStats(debugTranscript, false);
+			TranscriptStats debugTranscriptSTats = getTranscriptStats(debugTranscript);
 			if (debugTranscriptSTats != null)
 				System.out.println(debugTranscriptSTats);
 		}
@@ -122,15 +160,15 @@ public class Report {
 
 	}
 
-	public void toVcf(ReferenceSequenceFile reference, OutputStream os, OutputStream jsonOs, String sampleName)
+	public void toVcf(MappedFastaReference reference, OutputStream os, OutputStream jsonOs, String sampleName)
 			throws JsonGenerationException, JsonMappingException, IOException {
 		VcfBuilder vcfBuilder = new VcfBuilder(os, reference, sampleName);
 
-		List<Entry<Transcript, TranscriptStats>> sorted = transcriptStats.entrySet().stream()
+		List<TranscriptStats> sorted = getTranscriptStats().stream()
 				.sorted((a, b) -> ComparisonChain.start()
-						.compare(a.getValue().getFracIntronesCoveredCombined(),
-								b.getValue().getFracIntronesCoveredCombined())
-						.compare(a.getValue().getNumberOfIntrons(), b.getValue().getNumberOfIntrons()).result())
+						.compare(a.getFracIntronesCoveredCombined(),
+								b.getFracIntronesCoveredCombined())
+						.compare(a.getNumberOfIntrons(), b.getNumberOfIntrons()).result())
 				.collect(Collectors.toList());
 
 		StringBuilder sb = new StringBuilder();
@@ -138,9 +176,9 @@ public class Report {
 		// remove duplicated, leave only the most important one
 		Collections.reverse(sorted);
 		Set<String> geneNameUniqueness = new HashSet<>();
-		for (Iterator<Entry<Transcript, TranscriptStats>> iterator = sorted.iterator(); iterator.hasNext();) {
-			Entry<Transcript, TranscriptStats> entry = iterator.next();
-			if (geneNameUniqueness.add(entry.getKey().getGene())) {
+		for (Iterator<TranscriptStats> iterator = sorted.iterator(); iterator.hasNext();) {
+			TranscriptStats entry = iterator.next();
+			if (geneNameUniqueness.add(entry.getTranscript().getGene())) {
 				// it's ok, we see this gene for the first time
 			} else {
 				iterator.remove();
@@ -152,39 +190,39 @@ public class Report {
 		ObjectMapper objectMapper = new ObjectMapper(jsonFactory);
 
 		Collections.reverse(sorted);
-		for (Entry<Transcript, TranscriptStats> tsStats : sorted) {
+		for (TranscriptStats tsStats : sorted) {
 			IdentifiedPseudogene ip = new IdentifiedPseudogene();
 
-			ip.setMotherTranscript(tsStats.getKey());
-			ip.setContig(tsStats.getKey().getChr());
-			ip.setStart(tsStats.getKey().getTxStart());
+			ip.setMotherTranscript(tsStats.getTranscript());
+			ip.setContig(tsStats.getTranscript().getChr());
+			ip.setStart(tsStats.getTranscript().getTxStart());
 			ip.setSampleName(sampleName);
 
 			boolean known = false;
-			if (CollectionUtils.isNotEmpty(disconcordances.get(tsStats.getKey()))
-					|| CollectionUtils.isNotEmpty(disconcordancesAbysov.get(tsStats.getKey()))
-					|| disconcordancesAbysov.get(tsStats.getKey()) != null
-					|| referencePseudogenes.contains(tsStats.getKey())) {
+			if (CollectionUtils.isNotEmpty(disconcordances.get(tsStats.getTranscript().getId()))
+					|| CollectionUtils.isNotEmpty(disconcordancesAbysov.get(tsStats.getTranscript().getId()))
+					|| disconcordancesAbysov.get(tsStats.getTranscript().getId()) != null
+					|| referencePseudogenes.contains(tsStats.getTranscript().getId())) {
 				known = true;
 			}
 			ip.setKnown(known);
-			ip.setFracIntronesCoveredCombined(tsStats.getValue().getFracIntronesCoveredCombined());
-			ip.setFracIntronesCoveredClip(tsStats.getValue().getFracIntronesCoveredClip());
-			ip.setFracIntronesCoveredIS(tsStats.getValue().getFracIntronesCoveredIS());
+			ip.setFracIntronesCoveredCombined(tsStats.getFracIntronesCoveredCombined());
+			ip.setFracIntronesCoveredClip(tsStats.getFracIntronesCoveredClip());
+			ip.setFracIntronesCoveredIS(tsStats.getFracIntronesCoveredIS());
 
 			// sb.append("\t" +
-			// formatter.format(tsStats.getValue().getFracIntronesCoveredCombined())
+			// formatter.format(tsStats.getFracIntronesCoveredCombined())
 			// + "\t");
 			// sb.append("\t" +
-			// formatter.format(tsStats.getValue().getFracIntronesCoveredClip())
+			// formatter.format(tsStats.getFracIntronesCoveredClip())
 			// + "\t");
 			// sb.append("\t" +
-			// formatter.format(tsStats.getValue().getFracIntronesCoveredIS()) +
+			// formatter.format(tsStats.getFracIntronesCoveredIS()) +
 			// "\t");
 
-			ip.setIntronDetails(tsStats.getValue().supportingCount());
+			ip.setIntronDetails(tsStats.supportingCount());
 
-			// tsStats.getValue().supportingCount().stream().forEach(intron -> {
+			// tsStats.supportingCount().stream().forEach(intron -> {
 			// sb.append(" (");
 			// sb.append(intron.getIndex() + ":");
 			// sb.append(intron.getReadsSupportingRemovalByAlignment() + ",");
@@ -192,20 +230,20 @@ public class Report {
 			// });
 
 			// sb.append("\tdisconcordances:" +
-			// disconcordances.get(tsStats.getKey()));
-			ip.setDisconcordances(disconcordances.get(tsStats.getKey()));
+			// disconcordances.get(tsStats.getTranscript()));
+			ip.setDisconcordances(disconcordances.get(tsStats.getTranscript().getId()));
 			// sb.append("\tabysov:" +
-			// disconcordancesAbysov.get(tsStats.getKey()));
+			// disconcordancesAbysov.get(tsStats.getTranscript()));
 			// sb.append("\tabysovGene:" +
-			// (disconcordancesAbysov.get(tsStats.getKey())) != null ? "KNOWN" :
+			// (disconcordancesAbysov.get(tsStats.getTranscript())) != null ? "KNOWN" :
 			// "");
-			ip.setAbysovPseudogene(disconcordancesAbysov.get(tsStats.getKey()));
+			ip.setAbysovPseudogene(disconcordancesAbysov.get(tsStats.getTranscript().getId()));
 			// sb.append("\tpseudoGene:" +
-			// (referencePseudogenes.contains(tsStats.getKey()) ? "KNOWN" :
+			// (referencePseudogenes.contains(tsStats.getTranscript()) ? "KNOWN" :
 			// ""));
-			ip.setReferencePseudogene(referencePseudogenes.contains(tsStats.getKey()));
+			ip.setReferencePseudogene(referencePseudogenes.contains(tsStats.getTranscript().getId()));
 			sb.append("\n");
-			ip.setPossiblePositions(possiblePositions.get(ip.getMotherTranscript()));
+			ip.setPossiblePositions(possiblePositions.get(ip.getMotherTranscript().getId()));
 
 			if (ip.getFracIntronesCoveredClip() > 0.5 && ip.getFracIntronesCoveredIS() > 0.5
 					&& ip.getFracIntronesCoveredCombined() > 0.5 && ip.getIntronDetails().size() > 1) {
@@ -236,7 +274,7 @@ public class Report {
 		}
 
 		if (TX_NAME_DEBUG_POINT != null) {
-			TranscriptStats debugTranscriptSTats = getTranscriptStats(debugTranscript, false);
+			TranscriptStats debugTranscriptSTats = getTranscriptStats(debugTranscript);
 			if (debugTranscriptSTats != null)
 				System.out.println(debugTranscriptSTats);
 		}
@@ -246,63 +284,157 @@ public class Report {
 
 	}
 
-	public void addByInsertSize(Transcript transcript, Integer txIdx, SAMRecord read) {
+	public void addByInsertSize(Transcript transcript, Integer txIdx) {
 		if (TX_NAME_DEBUG_POINT.equals(transcript.getName())) {
 			log.warn("Here");
 			debugTranscript = transcript;
 		}
 
-		TranscriptStats ts = getTranscriptStats(transcript, true);
-		ts.addReadWithSmallInsertSize(txIdx, read);
+		getWorkerStats(transcript).addReadWithSmallInsertSize(txIdx);
 
 	}
 
-	public void addByAlign(Transcript transcript, Integer txIdx, SAMRecord read, AlignmentResult ar) {
+	public void addByAlign(Transcript transcript, Integer txIdx, AlignmentResult ar) {
 		if (TX_NAME_DEBUG_POINT.equals(transcript.getName())) {
 			log.warn("Here");
 		}
 
-		TranscriptStats ts = getTranscriptStats(transcript, true);
-		ts.addReadWithSoftClip(txIdx, read, ar);
+		int bound = getWorkerStats(transcript).addReadWithSoftClip(txIdx, ar);
+		if (bound != Integer.MAX_VALUE) {
+			getSaturationBounds(transcript).accumulateAndGet(txIdx, bound, Math::min);
+		}
+
+	}
 
+	/**
+	 * Count a clipped read aligned and not supporting the removal of the
+	 * intron
+	 */
+	public void rejectByAlign(Transcript transcript, int txIdx, int readPosition) {
+		if (saturationCap > 0) {
+			getWorkerStats(transcript).rejectReadWithSoftClip(txIdx, readPosition);
+		}
 	}
 
-	private TranscriptStats getTranscriptStats(Transcript t, boolean create) {
-		TranscriptStats ts = transcriptStats.get(t);
-		if (ts == null && create) {
-			synchronized (transcriptStats) {
-				ts = transcriptStats.get(t);
-				if (ts == null) {
-					ts = new TranscriptStats(t);
-					transcriptStats.put(t, ts);
-				}
+	/**
+	 * @return true if at least saturation cap reads starting before the read
+	 *         position support the removal of the intron by alignment, so the
+	 *         clip of the read would not be kept. Depends only on the
+	 *         position, the same clips are aligned whatever the number of
+	 *         threads.
+	 */
+	public boolean isSaturatedByAlign(Transcript transcript, int txIdx, int readPosition) {
+		if (saturationCap <= 0) {
+			return false;
+		}
+		AtomicIntegerArray bounds = saturationBounds.get(transcript.getId());
+		return bounds != null && bounds.get(txIdx) < readPosition;
+	}
+
+	private AtomicIntegerArray getSaturationBounds(Transcript transcript) {
+		AtomicIntegerArray bounds = saturationBounds.get(transcript.getId());
+		if (bounds == null) {
+			AtomicIntegerArray created = new AtomicIntegerArray(transcript.getIntronesNumber());
+			for (int i = 0; i < created.length(); i++) {
+				created.set(i, Integer.MAX_VALUE);
 			}
+			bounds = saturationBounds.compareAndSet(transcript.getId(), null, created) ? created
+					: saturationBounds.get(transcript.getId());
+		}
+		return bounds;
+	}
+
+	/**
+	 * Count a clipped read not aligned because the intron was saturated
+	 */
+	public void skipByAlign(Transcript transcript, int txIdx) {
+		getWorkerStats(transcript).skipReadWithSoftClip(txIdx);
+	}
+
+	private TIntObjectHashMap<TranscriptStats> newWorkerStats() {
+		TIntObjectHashMap<TranscriptStats> stats = new TIntObjectHashMap<>();
+		synchronized (allWorkerStats) {
+			allWorkerStats.add(stats);
+		}
+		return stats;
+	}
+
+	/**
+	 * @return stats of the transcript collected by the current thread
+	 */
+	private TranscriptStats getWorkerStats(Transcript t) {
+		TIntObjectHashMap<TranscriptStats> stats = workerStats.get();
+		TranscriptStats ts = stats.get(t.getId());
+		if (ts == null) {
+			ts = new TranscriptStats(t, saturationCap);
+			stats.put(t.getId(), ts);
 		}
 		return ts;
 	}
 
+	/**
+	 * Merge the evidence collected by all worker threads, has to be called
+	 * once the scan is over and before any output. Counts are summed and kept
+	 * alignments are the smallest ones in a fixed order, so the result does
+	 * not depend on the number of threads nor on the scheduling.
+	 */
+	public void mergeWorkerStats() {
+		synchronized (allWorkerStats) {
+			for (TIntObjectHashMap<TranscriptStats> stats : allWorkerStats) {
+				int[] ids = stats.keys();
+				Arrays.sort(ids);
+				for (int id : ids) {
+					TranscriptStats ts = stats.get(id);
+					if (transcriptStats[id] == null) {
+						transcriptStats[id] = new TranscriptStats(ts.getTranscript(), saturationCap);
+					}
+					transcriptStats[id].mergeFrom(ts);
+				}
+			}
+			allWorkerStats.clear();
+		}
+	}
+
+	private TranscriptStats getTranscriptStats(Transcript t) {
+		return t == null ? null : transcriptStats[t.getId()];
+	}
+
+	/**
+	 * @return merged stats of all transcripts with any evidence, in genomic
+	 *         order
+	 */
+	public List<TranscriptStats> getTranscriptStats() {
+		List<TranscriptStats> list = new ArrayList<>();
+		for (TranscriptStats ts : transcriptStats) {
+			if (ts != null) {
+				list.add(ts);
+			}
+		}
+		return list;
+	}
+
 	public void addDisconcordances(Transcript transcript, Set<String> hitsPseudogenesOf) {
-		disconcordances.put(transcript, hitsPseudogenesOf);
+		disconcordances.put(transcript.getId(), hitsPseudogenesOf);
 
 	}
 
 	public void addAbysovDisconcordances(Transcript transcript, Set<String> hitsAbyzovOf) {
-		disconcordancesAbysov.put(transcript, hitsAbyzovOf);
+		disconcordancesAbysov.put(transcript.getId(), hitsAbyzovOf);
 
 	}
 
 	public void addAbysovGene(Transcript transcript, boolean abysov) {
-		abysovGene.put(transcript, abysov);
+		abysovGene.put(transcript.getId(), abysov);
 
 	}
 
 	public void addReferencePseudogene(Transcript transcript) {
-		referencePseudogenes.add(transcript);
+		referencePseudogenes.add(transcript.getId());
 
 	}
 
 	public void addPossiblePositions(Transcript transcript, List<PositionWithEvidence> possiblePositions) {
-		this.possiblePositions.put(transcript, possiblePositions);
+		this.possiblePositions.put(transcript.getId(), possiblePositions);
 
 	}
 
@@ -311,7 +443,7 @@ public class Report {
 	public synchronized void populateReadData(SAMRecord read) {
 		if (readsMap == null) {
 			readsMap = new HashMap<>();
-			possiblePositions.values().stream().flatMap(v -> v.stream()).flatMap(v -> v.getReads().stream())
+			possiblePositions.valueCollection().stream().flatMap(v -> v.stream()).flatMap(v -> v.getReads().stream())
 					.forEach(r -> readsMap.put(r.getName(), r));
 		}
 		if (readsMap.containsKey(read.getReadName())) {
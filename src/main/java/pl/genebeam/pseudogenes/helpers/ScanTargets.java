@@ -0,0 +1,227 @@
+package pl.genebeam.pseudogenes.helpers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import htsjdk.samtools.QueryInterval;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+
+/**
+ * Sorted, disjoint intervals (1-based, inclusive) of the bam contigs that have
+ * to be read. Either whole contigs or only regions where reads may carry
+ * information about the loaded transcripts.
+ *
+ * @author pstawinski
+ *
+ */
+public class ScanTargets {
+	private final SAMSequenceDictionary dictionary;
+	/**
+	 * per bam reference index, null if nothing to read on the contig
+	 */
+	private final int[][] starts, ends;
+
+	private ScanTargets(SAMSequenceDictionary dictionary, int[][] starts, int[][] ends) {
+		this.dictionary = dictionary;
+		this.starts = starts;
+		this.ends = ends;
+	}
+
+	/**
+	 * All contigs from the bam header
+	 */
+	public static ScanTargets wholeGenome(SAMSequenceDictionary dictionary) {
+		int size = dictionary.size();
+		int[][] starts = new int[size][];
+		int[][] ends = new int[size][];
+		for (SAMSequenceRecord sequence : dictionary.getSequences()) {
+			starts[sequence.getSequenceIndex()] = new int[] { 1 };
+			ends[sequence.getSequenceIndex()] = new int[] { sequence.getSequenceLength() };
+		}
+		return new ScanTargets(dictionary, starts, ends);
+	}
+
+	/**
+	 * Merged spans of the transcripts extended by padding, so reads which
+	 * unclipped start or end falls into a transcript are also read. If
+	 * junctionsOnly is set only windows of +/- padding around junction sites
+	 * are used - this loses insert size evidence of reads lying deep in exons.
+	 */
+	public static ScanTargets transcripts(SAMSequenceDictionary dictionary, Collection<Transcript> transcripts,
+			int padding, boolean junctionsOnly) {
+		int size = dictionary.size();
+		List<List<int[]>> intervals = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			intervals.add(new ArrayList<>());
+		}
+
+		for (Transcript transcript : transcripts) {
+			int referenceIndex = dictionary.getSequenceIndex(transcript.getChr());
+			if (referenceIndex == -1) {
+				// contig not present in bam, nothing to read
+				continue;
+			}
+			List<int[]> contigIntervals = intervals.get(referenceIndex);
+			if (junctionsOnly) {
+				for (int junction : transcript.getJunctionSites()) {
+					contigIntervals.add(new int[] { junction - padding, junction + padding });
+				}
+			} else {
+				// transcript covers [txStart, txEnd)
+				contigIntervals.add(new int[] { transcript.getTxStart() - padding, transcript.getTxEnd() - 1 + padding });
+			}
+		}
+
+		int[][] starts = new int[size][];
+		int[][] ends = new int[size][];
+		for (int i = 0; i < size; i++) {
+			List<int[]> contigIntervals = intervals.get(i);
+			if (contigIntervals.isEmpty()) {
+				continue;
+			}
+			contigIntervals.sort((a, b) -> Integer.compare(a[0], b[0]));
+			int contigLength = dictionary.getSequence(i).getSequenceLength();
+
+			int[] contigStarts = new int[contigIntervals.size()];
+			int[] contigEnds = new int[contigIntervals.size()];
+			int count = 0;
+			for (int[] interval : contigIntervals) {
+				int start = Math.max(1, interval[0]);
+				int end = Math.min(contigLength, interval[1]);
+				if (start > end) {
+					continue;
+				}
+				if (count > 0 && start <= contigEnds[count - 1] + 1) {
+					contigEnds[count - 1] = Math.max(contigEnds[count - 1], end);
+				} else {
+					contigStarts[count] = start;
+					contigEnds[count] = end;
+					count++;
+				}
+			}
+			if (count > 0) {
+				starts[i] = Arrays.copyOf(contigStarts, count);
+				ends[i] = Arrays.copyOf(contigEnds, count);
+			}
+		}
+		return new ScanTargets(dictionary, starts, ends);
+	}
+
+	/**
+	 * @return targets limited to the region contig:start-end (1-based,
+	 *         inclusive)
+	 */
+	public ScanTargets restrictTo(String contig, int start, int end) {
+		int referenceIndex = dictionary.getSequenceIndex(contig);
+		if (referenceIndex == -1) {
+			throw new IllegalArgumentException("Contig " + contig + " is not present in the bam header");
+		}
+		int[][] restrictedStarts = new int[starts.length][];
+		int[][] restrictedEnds = new int[ends.length][];
+
+		int[] contigStarts = starts[referenceIndex];
+		int[] contigEnds = ends[referenceIndex];
+		if (contigStarts != null) {
+			int[] newStarts = new int[contigStarts.length];
+			int[] newEnds = new int[contigEnds.length];
+			int count = 0;
+			for (int i = 0; i < contigStarts.length; i++) {
+				int s = Math.max(start, contigStarts[i]);
+				int e = Math.min(end, contigEnds[i]);
+				if (s <= e) {
+					newStarts[count] = s;
+					newEnds[count] = e;
+					count++;
+				}
+			}
+			if (count > 0) {
+				restrictedStarts[referenceIndex] = Arrays.copyOf(newStarts, count);
+				restrictedEnds[referenceIndex] = Arrays.copyOf(newEnds, count);
+			}
+		}
+		return new ScanTargets(dictionary, restrictedStarts, restrictedEnds);
+	}
+
+	public QueryInterval[] toQueryIntervals() {
+		List<QueryInterval> intervals = new ArrayList<>();
+		for (int i = 0; i < starts.length; i++) {
+			if (starts[i] != null) {
+				for (int j = 0; j < starts[i].length; j++) {
+					intervals.add(new QueryInterval(i, starts[i][j], ends[i][j]));
+				}
+			}
+		}
+		return intervals.toArray(new QueryInterval[intervals.size()]);
+	}
+
+	/**
+	 * Group the intervals into shards. Intervals longer than shardSize are cut
+	 * into pieces first, then consecutive intervals of a contig are grouped
+	 * while their summed length does not exceed shardSize.
+	 */
+	public List<BamShard> split(int shardSize) {
+		if (shardSize <= 0) {
+			throw new IllegalArgumentException("Shard size has to be positive, got: " + shardSize);
+		}
+		List<BamShard> shards = new ArrayList<>();
+		for (int i = 0; i < starts.length; i++) {
+			if (starts[i] == null) {
+				continue;
+			}
+			String contig = dictionary.getSequence(i).getSequenceName();
+
+			// cut long intervals, the pieces stay sorted and disjoint
+			List<int[]> pieces = new ArrayList<>();
+			for (int j = 0; j < starts[i].length; j++) {
+				for (long position = starts[i][j]; position <= ends[i][j]; position += shardSize) {
+					pieces.add(new int[] { (int) position, (int) Math.min(position + shardSize - 1, ends[i][j]) });
+				}
+			}
+			int[] contigStarts = new int[pieces.size()];
+			int[] contigEnds = new int[pieces.size()];
+			for (int j = 0; j < pieces.size(); j++) {
+				contigStarts[j] = pieces.get(j)[0];
+				contigEnds[j] = pieces.get(j)[1];
+			}
+
+			int first = 0;
+			long length = 0;
+			for (int j = 0; j < contigStarts.length; j++) {
+				long pieceLength = contigEnds[j] - contigStarts[j] + 1;
+				if (j > first && length + pieceLength > shardSize) {
+					shards.add(new BamShard(i, contig, contigStarts, contigEnds, first, j - 1));
+					first = j;
+					length = 0;
+				}
+				length += pieceLength;
+			}
+			shards.add(new BamShard(i, contig, contigStarts, contigEnds, first, contigStarts.length - 1));
+		}
+		return shards;
+	}
+
+	public int size() {
+		int size = 0;
+		for (int[] contigStarts : starts) {
+			if (contigStarts != null) {
+				size += contigStarts.length;
+			}
+		}
+		return size;
+	}
+
+	public long totalLength() {
+		long length = 0;
+		for (int i = 0; i < starts.length; i++) {
+			if (starts[i] != null) {
+				for (int j = 0; j < starts[i].length; j++) {
+					length += ends[i][j] - starts[i][j] + 1;
+				}
+			}
+		}
+		return length;
+	}
+}
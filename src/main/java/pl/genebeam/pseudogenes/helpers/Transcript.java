@@ -1,16 +1,20 @@
 package pl.genebeam.pseudogenes.helpers;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Optional;
-import java.util.SortedSet;
-import java.util.TreeSet;
-import java.util.stream.Collectors;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.function.ToIntFunction;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.google.common.base.Splitter;
+import com.google.common.collect.DiscreteDomain;
 import com.google.common.collect.Range;
-import com.google.common.collect.TreeRangeMap;
+import com.google.common.primitives.Ints;
 
 public class Transcript {
 	private String name;
@@ -20,21 +24,30 @@ public class Transcript {
 	private int txEnd;
 	private int cdsStart;
 	private int cdsEnd;
+	/**
+	 * exon i covers [exonStarts[i], intronStarts[i]), intron i covers
+	 * [intronStarts[i], exonStarts[i + 1]); both sorted
+	 */
 	@JsonIgnore
-	private List<Integer> exonStarts;
+	private final int[] exonStarts;
 	@JsonIgnore
-	private List<Integer> intronStarts;
-	private boolean strandPlus;
-
+	private final int[] intronStarts;
 	/**
-	 * Range -> exone index
+	 * sorted, unique union of exon and intron starts
 	 */
 	@JsonIgnore
-	transient private TreeRangeMap<Integer, Integer> exoneRangeMap, introneRangeMap;
+	private final int[] junctionSites;
+	/**
+	 * intronLengthPrefix[i] is the summed length of introns [0, i)
+	 */
 	@JsonIgnore
-	transient private TreeSet<Integer> junctionSites;
+	private final int[] intronLengthPrefix;
+	private boolean strandPlus;
+	/**
+	 * dense number in genomic order, -1 until sortAndNumber
+	 */
 	@JsonIgnore
-	transient private TreeSet<Integer> exonStartPointSet, intronStartPointSet;
+	private int id = -1;
 
 	private final static Splitter tabSplitter = Splitter.on('\t');
 	private final static Splitter commaSplitter = Splitter.on(',').trimResults().omitEmptyStrings();
@@ -49,8 +62,26 @@ public class Transcript {
 		this.txEnd = txEnd;
 		this.cdsStart = cdsStart;
 		this.cdsEnd = cdsEnd;
+		this.exonStarts = Ints.toArray(exonStarts);
+		this.intronStarts = Ints.toArray(intronStarts);
+		this.junctionSites = mergeJunctionSites(this.exonStarts, this.intronStarts);
+		this.intronLengthPrefix = sumIntronLengths(this.exonStarts, this.intronStarts);
+		this.strandPlus = strandPlus;
+	}
+
+	public Transcript(String name, String gene, String chr, int txStart, int txEnd, int cdsStart, int cdsEnd,
+			int[] exonStarts, int[] intronStarts, boolean strandPlus) {
+		this.name = name;
+		this.gene = gene;
+		this.chr = chr;
+		this.txStart = txStart;
+		this.txEnd = txEnd;
+		this.cdsStart = cdsStart;
+		this.cdsEnd = cdsEnd;
 		this.exonStarts = exonStarts;
 		this.intronStarts = intronStarts;
+		this.junctionSites = mergeJunctionSites(exonStarts, intronStarts);
+		this.intronLengthPrefix = sumIntronLengths(exonStarts, intronStarts);
 		this.strandPlus = strandPlus;
 	}
 
@@ -64,10 +95,10 @@ public class Transcript {
 		this.cdsStart = Integer.valueOf(lineSplitted.get(5));
 		this.cdsEnd = Integer.valueOf(lineSplitted.get(6));
 		// this.exonCount = Integer.valueOf(lineSplitted.get(7));
-		this.exonStarts = commaSplitter.splitToList(lineSplitted.get(8)).stream().map(Integer::valueOf).map(x -> x + 1)
-				.collect(Collectors.toList());
-		this.intronStarts = commaSplitter.splitToList(lineSplitted.get(9)).stream().map(Integer::valueOf)
-				.map(x -> x + 1).collect(Collectors.toList());
+		this.exonStarts = parsePositions(lineSplitted.get(8));
+		this.intronStarts = parsePositions(lineSplitted.get(9));
+		this.junctionSites = mergeJunctionSites(this.exonStarts, this.intronStarts);
+		this.intronLengthPrefix = sumIntronLengths(this.exonStarts, this.intronStarts);
 
 		// this.score = lineSplitted.get(10);
 		this.gene = lineSplitted.get(11);
@@ -75,6 +106,46 @@ public class Transcript {
 		// this.cdsEndStat = lineSplitted.get(13);
 	}
 
+	/**
+	 * comma separated 0-based positions to 1-based positions
+	 */
+	private static int[] parsePositions(String positions) {
+		List<String> splitted = commaSplitter.splitToList(positions);
+		int[] parsed = new int[splitted.size()];
+		for (int i = 0; i < parsed.length; i++) {
+			parsed[i] = Integer.parseInt(splitted.get(i)) + 1;
+		}
+		return parsed;
+	}
+
+	private static int[] mergeJunctionSites(int[] exonStarts, int[] intronStarts) {
+		int[] sites = new int[exonStarts.length + intronStarts.length];
+		System.arraycopy(exonStarts, 0, sites, 0, exonStarts.length);
+		System.arraycopy(intronStarts, 0, sites, exonStarts.length, intronStarts.length);
+		Arrays.sort(sites);
+		int unique = 0;
+		for (int i = 0; i < sites.length; i++) {
+			if (unique == 0 || sites[unique - 1] != sites[i]) {
+				sites[unique++] = sites[i];
+			}
+		}
+		return Arrays.copyOf(sites, unique);
+	}
+
+	private static int[] sumIntronLengths(int[] exonStarts, int[] intronStarts) {
+		int introns = Math.max(0, intronStarts.length - 1);
+		int[] prefix = new int[introns + 1];
+		for (int i = 0; i < introns; i++) {
+			prefix[i + 1] = prefix[i] + Math.max(0, exonStarts[i + 1] - intronStarts[i]);
+		}
+		return prefix;
+	}
+
+	@JsonIgnore
+	public boolean isStrandPlus() {
+		return strandPlus;
+	}
+
 	@JsonIgnore
 	public int getCdsEnd() {
 		return cdsEnd;
@@ -87,12 +158,12 @@ public class Transcript {
 
 	@JsonIgnore
 	public List<Integer> getIntronStarts() {
-		return intronStarts;
+		return Collections.unmodifiableList(Ints.asList(intronStarts));
 	}
 
 	@JsonIgnore
 	public List<Integer> getExonStarts() {
-		return exonStarts;
+		return Collections.unmodifiableList(Ints.asList(exonStarts));
 	}
 
 	public String getGene() {
@@ -117,40 +188,71 @@ public class Transcript {
 		return chr;
 	}
 
-	@JsonIgnore
-	public TreeRangeMap<Integer, Integer> getExoneMap() {
-		if (exoneRangeMap == null) {
-			exoneRangeMap = TreeRangeMap.create();
-			for (int i = 0; i < exonStarts.size(); i++) {
-				exoneRangeMap.put(Range.closedOpen(exonStarts.get(i), intronStarts.get(i)), i);
-			}
+	/**
+	 * @return index of the exon containing position or -1
+	 */
+	public int exonIndexAt(int position) {
+		int i = floorIndex(exonStarts, exonStarts.length, position);
+		if (i >= 0 && position < intronStarts[i]) {
+			return i;
 		}
-		return exoneRangeMap;
+		return -1;
 	}
 
-	@JsonIgnore
-	public TreeRangeMap<Integer, Integer> getIntroneMap() {
+	/**
+	 * @return index of the intron containing position or -1
+	 */
+	public int intronIndexAt(int position) {
+		int i = floorIndex(intronStarts, getIntronesNumber(), position);
+		if (i >= 0 && position < exonStarts[i + 1]) {
+			return i;
+		}
+		return -1;
+	}
 
-		if (introneRangeMap == null) {
-			introneRangeMap = TreeRangeMap.create();
-			for (int i = 0; i < exonStarts.size() - 1; i++) {
-				introneRangeMap.put(Range.closedOpen(intronStarts.get(i), exonStarts.get(i + 1)), i);
-			}
+	/**
+	 * @return index of the last element of sorted[0, length) not greater than
+	 *         position, -1 if there is no such element
+	 */
+	private static int floorIndex(int[] sorted, int length, int position) {
+		if (length <= 0) {
+			return -1;
 		}
+		int idx = Arrays.binarySearch(sorted, 0, length, position);
+		return idx >= 0 ? idx : -idx - 2;
+	}
 
-		return introneRangeMap;
+	/**
+	 * @return index of the first element of sorted not less than position,
+	 *         sorted.length if there is no such element
+	 */
+	private static int ceilingIndex(int[] sorted, int position) {
+		int idx = Arrays.binarySearch(sorted, position);
+		return idx >= 0 ? idx : -idx - 1;
 	}
 
 	public Integer getExonIndexAtPosition(int position) {
-		return getExoneMap().get(position);
+		int index = exonIndexAt(position);
+		return index == -1 ? null : index;
 	}
 
 	public Integer getIntronIndexAtPosition(int position) {
-		return getIntroneMap().get(position);
+		int index = intronIndexAt(position);
+		return index == -1 ? null : index;
 	}
 
+	/**
+	 * get exones overlapping this range
+	 */
 	public Collection<Integer> getExonesIn(Range<Integer> range) {
-		return getExoneMap().subRangeMap(range).asMapOfRanges().values();
+		int from = lowerEndpoint(range), to = upperEndpoint(range);
+		List<Integer> exones = new ArrayList<>();
+		for (int i = 0; i < exonStarts.length; i++) {
+			if (exonStarts[i] < intronStarts[i] && exonStarts[i] < to && intronStarts[i] > from) {
+				exones.add(i);
+			}
+		}
+		return exones;
 	}
 
 	/**
@@ -160,72 +262,231 @@ public class Transcript {
 	 * @return
 	 */
 	public Collection<Integer> getIntronesOverlapping(Range<Integer> range) {
-		return getIntroneMap().subRangeMap(range).asMapOfRanges().values();
+		int from = lowerEndpoint(range), to = upperEndpoint(range);
+		List<Integer> intrones = new ArrayList<>();
+		for (int i = 0; i < getIntronesNumber(); i++) {
+			if (intronStarts[i] < exonStarts[i + 1] && intronStarts[i] < to && exonStarts[i + 1] > from) {
+				intrones.add(i);
+			}
+		}
+		return intrones;
 	}
 
+	/**
+	 * get intrones fully enclosed in this range
+	 */
 	public Collection<Integer> getIntronesIn(Range<Integer> range) {
-		return getIntroneMap().asMapOfRanges().entrySet().stream().filter((x) -> range.encloses(x.getKey()))
-				.map(x -> x.getValue()).collect(Collectors.toList());
+		int from = lowerEndpoint(range), to = upperEndpoint(range);
+		List<Integer> intrones = new ArrayList<>();
+		for (int i = firstIntronStartingFrom(from), end = intronsEndingBy(to); i < end; i++) {
+			if (intronStarts[i] < exonStarts[i + 1]) {
+				intrones.add(i);
+			}
+		}
+		return intrones;
+	}
+
+	/**
+	 * @return index of the first non empty intron enclosed in [from, to), -1
+	 *         if there is none
+	 */
+	public int firstIntronIn(int from, int to) {
+		for (int i = firstIntronStartingFrom(from), end = intronsEndingBy(to); i < end; i++) {
+			if (intronStarts[i] < exonStarts[i + 1]) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return summed length of intrones enclosed in [from, to)
+	 */
+	public int intronesLengthIn(int from, int to) {
+		int first = firstIntronStartingFrom(from), end = intronsEndingBy(to);
+		return first < end ? intronLengthPrefix[end] - intronLengthPrefix[first] : 0;
+	}
+
+	/**
+	 * @return index of the first intron starting at or after from; introns
+	 *         enclosed in [from, to) are the ones from this index to
+	 *         intronsEndingBy(to)
+	 */
+	private int firstIntronStartingFrom(int from) {
+		return lowerBound(intronStarts, 0, getIntronesNumber(), from);
+	}
+
+	/**
+	 * @return number of introns ending at or before to, as intron ends are
+	 *         sorted these are the introns [0, result)
+	 */
+	private int intronsEndingBy(int to) {
+		// end of intron i is exonStarts[i + 1]
+		return Math.max(0, upperBound(exonStarts, 1, getIntronesNumber() + 1, to) - 1);
+	}
+
+	/**
+	 * @return index of the first element of sorted[from, to) not less than
+	 *         key, to if there is no such element
+	 */
+	private static int lowerBound(int[] sorted, int from, int to, int key) {
+		while (from < to) {
+			int mid = (from + to) >>> 1;
+			if (sorted[mid] < key) {
+				from = mid + 1;
+			} else {
+				to = mid;
+			}
+		}
+		return from;
 	}
 
+	/**
+	 * @return index of the first element of sorted[from, to) greater than
+	 *         key, to if there is no such element
+	 */
+	private static int upperBound(int[] sorted, int from, int to, int key) {
+		while (from < to) {
+			int mid = (from + to) >>> 1;
+			if (sorted[mid] <= key) {
+				from = mid + 1;
+			} else {
+				to = mid;
+			}
+		}
+		return from;
+	}
+
+	/**
+	 * @return summed length of the parts of intrones overlapping this range
+	 */
 	public Integer getIntronesSizesIn(Range<Integer> range) {
-		return getIntroneMap().subRangeMap(range).asMapOfRanges().keySet().stream()
-				.mapToInt(x -> x.upperEndpoint() - x.lowerEndpoint()).sum();
+		int from = lowerEndpoint(range), to = upperEndpoint(range);
+		int size = 0;
+		for (int i = 0; i < getIntronesNumber(); i++) {
+			size += Math.max(0, Math.min(exonStarts[i + 1], to) - Math.max(intronStarts[i], from));
+		}
+		return size;
+	}
+
+	/**
+	 * inclusive lower endpoint of the range as [from, to)
+	 */
+	private static int lowerEndpoint(Range<Integer> range) {
+		Range<Integer> canonical = range.canonical(DiscreteDomain.integers());
+		return canonical.hasLowerBound() ? canonical.lowerEndpoint() : Integer.MIN_VALUE;
+	}
+
+	/**
+	 * exclusive upper endpoint of the range as [from, to)
+	 */
+	private static int upperEndpoint(Range<Integer> range) {
+		Range<Integer> canonical = range.canonical(DiscreteDomain.integers());
+		return canonical.hasUpperBound() ? canonical.upperEndpoint() : Integer.MAX_VALUE;
 	}
 
 	public Range<Integer> getIntronWithIndex(int index) {
-		return Range.closedOpen(intronStarts.get(index), exonStarts.get(index + 1));
+		return Range.closedOpen(intronStarts[index], exonStarts[index + 1]);
 	}
 
 	public Range<Integer> getExonWithIndex(int index) {
-		return Range.closedOpen(exonStarts.get(index), intronStarts.get(index));
+		return Range.closedOpen(exonStarts[index], intronStarts[index]);
 	}
 
-	public TreeSet<Integer> getJunctionSites() {
-		if (junctionSites == null) {
-			junctionSites = new TreeSet<>();
-			junctionSites.addAll(exonStarts);
-			junctionSites.addAll(intronStarts);
-		}
-		return junctionSites;
+	public int getExonStart(int index) {
+		return exonStarts[index];
+	}
+
+	/**
+	 * @return first position after the exon
+	 */
+	public int getExonEnd(int index) {
+		return intronStarts[index];
+	}
+
+	public int getIntronStart(int index) {
+		return intronStarts[index];
+	}
+
+	/**
+	 * @return first position after the intron
+	 */
+	public int getIntronEnd(int index) {
+		return exonStarts[index + 1];
+	}
+
+	public int[] getJunctionSites() {
+		return junctionSites.clone();
 	}
 
 	public Integer getNearestJunctionSite(Integer position) {
-		TreeSet<Integer> js = getJunctionSites();
-		Integer ceiling = Optional.ofNullable(js.ceiling(position)).orElse(Integer.MAX_VALUE);
-		Integer floor = Optional.ofNullable(js.floor(position)).orElse(0);
+		int idx = ceilingIndex(junctionSites, position);
+		int ceiling = idx < junctionSites.length ? junctionSites[idx] : Integer.MAX_VALUE;
+		int floorIdx = idx < junctionSites.length && junctionSites[idx] == position ? idx : idx - 1;
+		int floor = floorIdx >= 0 ? junctionSites[floorIdx] : 0;
 
 		return Math.min(ceiling - position, position - floor);
 
 	}
 
-	public SortedSet<Integer> getJunctionsIn(Range<Integer> range) {
-		TreeSet<Integer> js = getJunctionSites();
-		return js.subSet(range.lowerEndpoint(), range.upperEndpoint());
+	/**
+	 * @return true if any junction site lies in [from, to)
+	 */
+	public boolean hasJunctionIn(int from, int to) {
+		int idx = ceilingIndex(junctionSites, from);
+		return idx < junctionSites.length && junctionSites[idx] < to;
+	}
+
+	/**
+	 * @return junction sites lying in [from, to), in ascending order
+	 */
+	public PrimitiveIterator.OfInt junctionsIn(int from, int to) {
+		return new PrimitiveIterator.OfInt() {
+			private int idx = ceilingIndex(junctionSites, from);
+
+			@Override
+			public boolean hasNext() {
+				return idx < junctionSites.length && junctionSites[idx] < to;
+			}
+
+			@Override
+			public int nextInt() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return junctionSites[idx++];
+			}
+		};
 	}
 
-	@JsonIgnore
-	public SortedSet<Integer> getExonStartPointsSet() {
-		if (exonStartPointSet == null) {
-			exonStartPointSet = new TreeSet<>(exonStarts);
-		}
-		return exonStartPointSet;
+	public boolean isExonStartPoint(int position) {
+		return Arrays.binarySearch(exonStarts, position) >= 0;
 	}
 
-	@JsonIgnore
-	public SortedSet<Integer> getIntronStartPointsSet() {
-		if (intronStartPointSet == null) {
-			intronStartPointSet = new TreeSet<>(intronStarts);
-		}
-		return intronStartPointSet;
+	public boolean isIntronStartPoint(int position) {
+		return Arrays.binarySearch(intronStarts, position) >= 0;
 	}
 
-	public Boolean isExonStartPoint(Integer position) {
-		return getExonStartPointsSet().contains(position);
+	@JsonIgnore
+	public int getId() {
+		return id;
 	}
 
-	public Boolean isIntronStartPoint(Integer position) {
-		return getIntronStartPointsSet().contains(position);
+	/**
+	 * Sort transcripts in genomic order and number them 0..size-1 in that
+	 * order. Contigs are ordered by contigOrder, contigs it does not know
+	 * (negative value) go last in name order.
+	 */
+	public static void sortAndNumber(List<Transcript> transcripts, ToIntFunction<String> contigOrder) {
+		Comparator<Transcript> byContig = Comparator.comparingInt(t -> {
+			int order = contigOrder.applyAsInt(t.getChr());
+			return order < 0 ? Integer.MAX_VALUE : order;
+		});
+		transcripts.sort(byContig.thenComparing(Transcript::getChr).thenComparingInt(Transcript::getTxStart)
+				.thenComparingInt(Transcript::getTxEnd).thenComparing(Transcript::getName));
+		for (int i = 0; i < transcripts.size(); i++) {
+			transcripts.get(i).id = i;
+		}
 	}
 
 	@Override
@@ -255,7 +516,7 @@ public class Transcript {
 
 	@JsonIgnore
 	public int getIntronesNumber() {
-		return intronStarts.size() - 1;
+		return intronStarts.length - 1;
 	}
 
 	@Override
@@ -1,66 +1,245 @@
 package pl.genebeam.pseudogenes.helpers;
 
+import java.util.Comparator;
 import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
-import com.google.common.collect.Multimaps;
-
-import gnu.trove.set.hash.TIntHashSet;
-import htsjdk.samtools.SAMRecord;
+import gnu.trove.map.hash.TIntIntHashMap;
 import pl.genebeam.pseudogenes.model.AlignmentResult;
-import pl.genebeam.pseudogenes.model.ReadBasicData;
-import pl.genebeam.pseudogenes.service.SamReadToBasicRead;
 
+/**
+ * Evidence of the removal of introns of a single transcript. Not thread safe:
+ * every worker thread fills its own instance, Report merges them once the
+ * scan is over.
+ */
 public class TranscriptStats {
+	/**
+	 * order of kept alignments, total over the output fields so kept
+	 * alignments do not depend on the number of threads
+	 */
+	private static final Comparator<AlignmentResult> ALIGNMENT_ORDER = Comparator
+			.comparing(AlignmentResult::getReadContig, Comparator.nullsFirst(Comparator.<String>naturalOrder()))
+			.thenComparingInt(AlignmentResult::getReadPosition)
+			.thenComparing(AlignmentResult::getReadname, Comparator.nullsFirst(Comparator.<String>naturalOrder()))
+			.thenComparing(AlignmentResult::getBases1).thenComparing(AlignmentResult::getBases2)
+			.thenComparingInt(AlignmentResult::getIdentical).thenComparingInt(AlignmentResult::getLength);
+
 	public TranscriptStats(Transcript t) {
+		this(t, 0);
+	}
+
+	/**
+	 * @param saturationCap
+	 *            number of alignments kept per intron, clipped reads of an
+	 *            intron with that many supporting reads are not aligned any
+	 *            more; 0 keeps all
+	 */
+	public TranscriptStats(Transcript t, int saturationCap) {
 		this.transcript = t;
+		this.saturationCap = saturationCap;
+		this.readsByIntronSize = IntronEvidence.countsOnly(t.getIntronesNumber());
+		this.readsBySoftClipped = IntronEvidence.withExemplars(t.getIntronesNumber(), saturationCap,
+				ALIGNMENT_ORDER);
+		if (saturationCap > 0) {
+			this.skippedByAlignment = IntronEvidence.countsOnly(t.getIntronesNumber());
+			this.rejectedByAlignment = new TIntIntHashMap[t.getIntronesNumber()];
+			this.smallestAlignedPositions = new int[t.getIntronesNumber()][];
+			this.numberOfSmallestAlignedPositions = new int[t.getIntronesNumber()];
+		} else {
+			this.skippedByAlignment = null;
+			this.rejectedByAlignment = null;
+			this.smallestAlignedPositions = null;
+			this.numberOfSmallestAlignedPositions = null;
+		}
 	}
 
 	private final Transcript transcript;
-	private Multimap<Integer, ReadBasicData> readsByIntronSize = Multimaps.synchronizedSetMultimap(HashMultimap.create());
-	private Multimap<Integer, AlignmentResult> readsBySoftClipped = Multimaps
-			.synchronizedSetMultimap(HashMultimap.create());
+	private final int saturationCap;
+	private final IntronEvidence<Void> readsByIntronSize;
+	private final IntronEvidence<AlignmentResult> readsBySoftClipped;
+	/**
+	 * clipped reads not aligned because the intron was saturated, null if
+	 * there is no cap
+	 */
+	private final IntronEvidence<Void> skippedByAlignment;
+	/**
+	 * per intron: read position to the number of clips aligned and rejected
+	 * at it, null if there is no cap
+	 */
+	private final TIntIntHashMap[] rejectedByAlignment;
+	/**
+	 * per intron: max heap of the saturationCap smallest positions of reads
+	 * supporting the removal by alignment, seen by this worker; used only
+	 * during the scan and not merged
+	 */
+	private final int[][] smallestAlignedPositions;
+	private final int[] numberOfSmallestAlignedPositions;
+
+	public void addReadWithSmallInsertSize(int txIdx) {
+		readsByIntronSize.add(txIdx);
+	}
 
-	public void addReadWithSmallInsertSize(Integer txIdx, SAMRecord read) {
-		readsByIntronSize.put(txIdx, SamReadToBasicRead.convert(read));
+	/**
+	 * @return with a saturation cap the position of the cap-th smallest read
+	 *         supporting the removal of the intron by alignment in this
+	 *         worker, Integer.MAX_VALUE if there are less of them or there is
+	 *         no cap
+	 */
+	public int addReadWithSoftClip(int txIdx, AlignmentResult ar) {
+		readsBySoftClipped.add(txIdx, ar);
+		if (saturationCap <= 0) {
+			return Integer.MAX_VALUE;
+		}
+		return offerAlignedPosition(txIdx, ar.getReadPosition());
 	}
 
-	public void addReadWithSoftClip(Integer txIdx, SAMRecord read, AlignmentResult ar) {
-		readsBySoftClipped.put(txIdx, ar);
+	private int offerAlignedPosition(int txIdx, int position) {
+		int[] heap = smallestAlignedPositions[txIdx];
+		if (heap == null) {
+			heap = new int[saturationCap];
+			smallestAlignedPositions[txIdx] = heap;
+		}
+		int size = numberOfSmallestAlignedPositions[txIdx];
+		if (size < saturationCap) {
+			// sift up
+			int i = size++;
+			while (i > 0 && heap[(i - 1) / 2] < position) {
+				heap[i] = heap[(i - 1) / 2];
+				i = (i - 1) / 2;
+			}
+			heap[i] = position;
+			numberOfSmallestAlignedPositions[txIdx] = size;
+		} else if (position < heap[0]) {
+			// replace the largest one and sift down
+			int i = 0;
+			while (2 * i + 1 < size) {
+				int child = 2 * i + 1;
+				if (child + 1 < size && heap[child + 1] > heap[child]) {
+					child++;
+				}
+				if (heap[child] <= position) {
+					break;
+				}
+				heap[i] = heap[child];
+				i = child;
+			}
+			heap[i] = position;
+		}
+		return size == saturationCap ? heap[0] : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Count a clipped read aligned and not supporting the removal of the
+	 * intron, needed only with a saturation cap
+	 */
+	public void rejectReadWithSoftClip(int txIdx, int readPosition) {
+		rejectedByAlignment(txIdx).adjustOrPutValue(readPosition, 1, 1);
+	}
+
+	private TIntIntHashMap rejectedByAlignment(int txIdx) {
+		TIntIntHashMap rejected = rejectedByAlignment[txIdx];
+		if (rejected == null) {
+			rejected = new TIntIntHashMap();
+			rejectedByAlignment[txIdx] = rejected;
+		}
+		return rejected;
+	}
+
+	/**
+	 * Count a clipped read not aligned because the intron was saturated
+	 */
+	public void skipReadWithSoftClip(int txIdx) {
+		skippedByAlignment.add(txIdx);
+	}
+
+	/**
+	 * Add evidence collected by another worker for the same transcript
+	 */
+	public void mergeFrom(TranscriptStats other) {
+		readsByIntronSize.mergeFrom(other.readsByIntronSize);
+		readsBySoftClipped.mergeFrom(other.readsBySoftClipped);
+		if (skippedByAlignment != null) {
+			skippedByAlignment.mergeFrom(other.skippedByAlignment);
+			for (int i = 0; i < rejectedByAlignment.length; i++) {
+				if (other.rejectedByAlignment[i] != null) {
+					TIntIntHashMap rejected = rejectedByAlignment(i);
+					other.rejectedByAlignment[i].forEachEntry((position, count) -> {
+						rejected.adjustOrPutValue(position, count, count);
+						return true;
+					});
+				}
+			}
+		}
 	}
 
 	public double getFracIntronesCoveredIS() {
-		double size = readsByIntronSize.keySet().size();
+		double size = readsByIntronSize.getNumberOfCovered();
 		return size / (double) transcript.getIntronesNumber();
 	}
 
 	public double getFracIntronesCoveredClip() {
-		double size = readsBySoftClipped.keySet().size();
+		double size = readsBySoftClipped.getNumberOfCovered();
 		return size / (double) transcript.getIntronesNumber();
 	}
 
 	public double getFracIntronesCoveredCombined() {
-		TIntHashSet set = new TIntHashSet();
-		set.addAll(readsByIntronSize.keySet());
-		set.addAll(readsBySoftClipped.keySet());
+		int covered = 0;
+		for (int i = 0; i < transcript.getIntronesNumber(); i++) {
+			if (readsByIntronSize.isCovered(i) || readsBySoftClipped.isCovered(i)) {
+				covered++;
+			}
+		}
 		// return ((double) set.size()) / (double) getNumberOfIntrons();
-		double doubleCoveredFraction = (double) set.size() / (double) transcript.getIntronesNumber();
+		double doubleCoveredFraction = (double) covered / (double) transcript.getIntronesNumber();
 		return (doubleCoveredFraction + 2 * getFracIntronesCoveredClip() + getFracIntronesCoveredIS()) / 4.;
 
 	}
 
+	/**
+	 * With a saturation cap the supporting reads of every method are capped,
+	 * reads above the cap are reported as skipped. For the alignment these
+	 * are all clips of the intron except the supporting ones and the ones
+	 * rejected at positions up to the last kept alignment: every clip up to
+	 * that position is aligned whatever the number of threads, so the counts
+	 * do not depend on which clips beyond it were skipped.
+	 */
 	public List<IntronData> supportingCount() {
 		List<IntronData> list = IntStream.range(0, transcript.getIntronesNumber())
-				.filter((x) -> (!readsByIntronSize.get(x).isEmpty()) || (!readsBySoftClipped.get(x).isEmpty()))
-				.mapToObj((x) -> new IntronData(x, readsByIntronSize.get(x).size(), readsBySoftClipped.get(x).size(),
-						readsBySoftClipped.get(x)))
-				.collect(Collectors.toList());
+				.filter((x) -> readsByIntronSize.isCovered(x) || readsBySoftClipped.isCovered(x))
+				.mapToObj(this::intronData).collect(Collectors.toList());
 		return list;
 	}
 
+	private IntronData intronData(int txIdx) {
+		int byIS = (int) readsByIntronSize.getCount(txIdx);
+		int byAlignment = (int) readsBySoftClipped.getCount(txIdx);
+		List<AlignmentResult> alignmentResults = readsBySoftClipped.getExemplars(txIdx);
+		if (saturationCap <= 0) {
+			return new IntronData(txIdx, byIS, byAlignment, alignmentResults);
+		}
+		int supportingByIS = Math.min(byIS, saturationCap);
+		int supportingByAlignment = Math.min(byAlignment, saturationCap);
+		int skippedByAlignment = byAlignment - supportingByAlignment + (int) this.skippedByAlignment.getCount(txIdx);
+		if (byAlignment >= saturationCap && rejectedByAlignment[txIdx] != null) {
+			int lastKept = alignmentResults.get(saturationCap - 1).getReadPosition();
+			int[] rejectedAfter = new int[1];
+			rejectedByAlignment[txIdx].forEachEntry((position, count) -> {
+				if (position > lastKept) {
+					rejectedAfter[0] += count;
+				}
+				return true;
+			});
+			skippedByAlignment += rejectedAfter[0];
+		}
+		return new IntronData(txIdx, supportingByIS, supportingByAlignment, alignmentResults, byIS - supportingByIS,
+				skippedByAlignment);
+	}
+
+	public Transcript getTranscript() {
+		return transcript;
+	}
+
 	public int getNumberOfIntrons() {
 		try {
 			return transcript.getIntronesNumber();
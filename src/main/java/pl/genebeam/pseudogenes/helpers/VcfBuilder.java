@@ -9,7 +9,6 @@ import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 
-import htsjdk.samtools.reference.ReferenceSequenceFile;
 import htsjdk.variant.variantcontext.Allele;
 import htsjdk.variant.variantcontext.GenotypeBuilder;
 import htsjdk.variant.variantcontext.VariantContextBuilder;
@@ -23,12 +22,13 @@ import htsjdk.variant.vcf.VCFHeaderLineCount;
 import htsjdk.variant.vcf.VCFHeaderLineType;
 import htsjdk.variant.vcf.VCFInfoHeaderLine;
 import pl.genebeam.pseudogenes.model.IdentifiedPseudogene;
+import pl.genebeam.utils.MappedFastaReference;
 
 public class VcfBuilder implements Closeable {
 	private final VariantContextWriter vcf;
-	private final ReferenceSequenceFile reference;
+	private final MappedFastaReference reference;
 
-	public VcfBuilder(OutputStream os, ReferenceSequenceFile reference, String sampleName) {
+	public VcfBuilder(OutputStream os, MappedFastaReference reference, String sampleName) {
 		this.vcf = new VariantContextWriterBuilder().setOutputStream(os)
 				.setOptions(EnumSet.of(Options.ALLOW_MISSING_FIELDS_IN_HEADER)).build();
 		this.reference = reference;
@@ -57,7 +57,7 @@ public class VcfBuilder implements Closeable {
 			int start = pseudogene.getMotherTranscript().getCdsStart();
 			int end = pseudogene.getMotherTranscript().getCdsEnd();
 
-			String refBase = reference.getSubsequenceAt(pseudogene.getContig(), start, start).getBaseString();
+			String refBase = new String(reference.getBases(pseudogene.getContig(), start, start));
 
 			VariantContextBuilder vcBuilder = new VariantContextBuilder().chr(pseudogene.getContig())
 					.start(pseudogene.getStart()).stop(end).attribute("SVTYPE", "PSDGN").attribute("END", end)
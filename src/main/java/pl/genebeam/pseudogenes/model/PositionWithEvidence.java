@@ -1,14 +1,82 @@
 package pl.genebeam.pseudogenes.model;
 
+import java.util.Arrays;
 import java.util.Set;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.google.common.collect.ComparisonChain;
 
+import gnu.trove.set.hash.TIntHashSet;
 import pl.genebeam.utils.GenomicPosition;
 
+/**
+ * Cluster of mate positions: the centroid as the position, the span of mate
+ * starts, the distinct mate starts and the reads
+ */
 public class PositionWithEvidence implements Comparable<PositionWithEvidence> {
 	private GenomicPosition position;
 	private Set<ReadSummary> reads;
+	private int start;
+	private int end;
+	@JsonIgnore
+	private int mateCount;
+	@JsonIgnore
+	private long positionSum;
+	@JsonIgnore
+	private final TIntHashSet mateStarts = new TIntHashSet();
+
+	/**
+	 * Add a mate starting at the position
+	 */
+	public void add(int mateStart, ReadSummary read) {
+		if (mateCount == 0 || mateStart < start) {
+			start = mateStart;
+		}
+		if (mateCount == 0 || mateStart > end) {
+			end = mateStart;
+		}
+		mateCount++;
+		positionSum += mateStart;
+		mateStarts.add(mateStart);
+		reads.add(read);
+	}
+
+	/**
+	 * Add all mates of another cluster on the same contig
+	 */
+	public void mergeFrom(PositionWithEvidence other) {
+		if (other.mateCount == 0) {
+			return;
+		}
+		if (mateCount == 0 || other.start < start) {
+			start = other.start;
+		}
+		if (mateCount == 0 || other.end > end) {
+			end = other.end;
+		}
+		mateCount += other.mateCount;
+		positionSum += other.positionSum;
+		mateStarts.addAll(other.mateStarts);
+		reads.addAll(other.reads);
+	}
+
+	/**
+	 * @return mean mate start, 0 if there are no mates
+	 */
+	@JsonIgnore
+	public int getCentroid() {
+		return mateCount == 0 ? 0 : (int) (positionSum / mateCount);
+	}
+
+	/**
+	 * @return distinct mate starts, sorted
+	 */
+	@JsonIgnore
+	public int[] getMateStarts() {
+		int[] starts = mateStarts.toArray();
+		Arrays.sort(starts);
+		return starts;
+	}
 
 	public GenomicPosition getPosition() {
 		return position;
@@ -26,6 +94,30 @@ public class PositionWithEvidence implements Comparable<PositionWithEvidence> {
 		this.reads = reads;
 	}
 
+	public int getStart() {
+		return start;
+	}
+
+	public void setStart(int start) {
+		this.start = start;
+	}
+
+	public int getEnd() {
+		return end;
+	}
+
+	public void setEnd(int end) {
+		this.end = end;
+	}
+
+	/**
+	 * @return number of distinct reads, a read found in two joined bins is
+	 *         counted once
+	 */
+	public int getReadCount() {
+		return reads == null ? 0 : reads.size();
+	}
+
 	@Override
 	public int compareTo(PositionWithEvidence o) {
 		return ComparisonChain.start().compare(position, o.position).result();
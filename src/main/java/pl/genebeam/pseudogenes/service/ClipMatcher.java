@@ -0,0 +1,225 @@
+package pl.genebeam.pseudogenes.service;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import pl.genebeam.pseudogenes.model.AlignmentResult;
+import pl.genebeam.utils.BandedLocalAligner;
+
+/**
+ * Decides if a floating (clipped) sequence aligns to the flank of the
+ * neighbour exon. The cheap tiers are tried first:
+ * <ol>
+ * <li>exact match of the floating sequence at the expected anchor in the
+ * flank,</li>
+ * <li>ungapped alignment at the anchor, accepted by the same identity rule as
+ * the full alignment,</li>
+ * <li>gapped local alignment of the floating sequence to the whole flank.</li>
+ * </ol>
+ * The first two tiers can only accept, a floating sequence they do not accept
+ * may still align with gaps or at another placement. The tier which decided
+ * is counted. Results of the gapped alignment are cached by (junction event,
+ * floating sequence), reads of a real retrocopy carry the same clipped
+ * sequence at the same junction.
+ * 
+ * @author pstawinski
+ *
+ */
+public class ClipMatcher {
+	private static final int MIN_IDENTICALS = 5;
+	private static final double MIN_IDENTITY = 0.9;
+
+	private final ThreadLocal<BandedLocalAligner> aligners = ThreadLocal.withInitial(BandedLocalAligner::new);
+
+	private final LongAdder exactMatches = new LongAdder();
+	private final LongAdder ungappedMatches = new LongAdder();
+	private final LongAdder gappedMatches = new LongAdder();
+	private final LongAdder gappedRejections = new LongAdder();
+
+	/**
+	 * null if caching is disabled
+	 */
+	private final Cache<AlignmentKey, CachedAlignment> cache;
+
+	/**
+	 * junction event (it determines the flank and the side) and a copy of the
+	 * floating sequence; the 64-bit hash only speeds up the lookup, keys are
+	 * equal only if their bases are
+	 */
+	private static final class AlignmentKey {
+		private final int eventId;
+		private final byte[] bases;
+		private final long hash;
+
+		AlignmentKey(int eventId, byte[] readBases, int floatingOffset, int floatingLength) {
+			this.eventId = eventId;
+			this.bases = Arrays.copyOfRange(readBases, floatingOffset, floatingOffset + floatingLength);
+			this.hash = hash(bases);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * eventId + Long.hashCode(hash);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof AlignmentKey))
+				return false;
+			AlignmentKey other = (AlignmentKey) obj;
+			return eventId == other.eventId && hash == other.hash && Arrays.equals(bases, other.bases);
+		}
+	}
+
+	private static final class CachedAlignment {
+		private static final CachedAlignment REJECTED = new CachedAlignment(null, null, 0);
+
+		private final String bases1;
+		private final String bases2;
+		private final int identicals;
+
+		CachedAlignment(String bases1, String bases2, int identicals) {
+			this.bases1 = bases1;
+			this.bases2 = bases2;
+			this.identicals = identicals;
+		}
+	}
+
+	/**
+	 * @param cacheSize
+	 *            maximal number of cached gapped alignments, 0 disables the
+	 *            cache
+	 */
+	public ClipMatcher(int cacheSize) {
+		if (cacheSize > 0) {
+			this.cache = CacheBuilder.newBuilder().maximumSize(cacheSize).recordStats().build();
+		} else {
+			this.cache = null;
+		}
+	}
+
+	/**
+	 * @param eventId
+	 *            id of the junction event the flank belongs to
+	 * @param flankLength
+	 *            number of flank bases in the array
+	 * @param anchor
+	 *            offset in the flank where the floating sequence is expected
+	 *            to start
+	 * @return the alignment if the floating sequence aligns to the flank, null
+	 *         otherwise
+	 */
+	public AlignmentResult match(int eventId, byte[] readBases, int floatingOffset, int floatingLength,
+			byte[] flank, int flankLength, int anchor, String readName, String readContig, int readStart) {
+		BandedLocalAligner aligner = aligners.get();
+
+		if (anchor >= 0 && anchor + floatingLength <= flankLength) {
+			aligner.alignUngapped(readBases, floatingOffset, floatingLength, flank, anchor);
+			int identicals = aligner.getIdenticals();
+			if (identicals == floatingLength && isAccepted(identicals, floatingLength)) {
+				exactMatches.increment();
+				return toResult(aligner, floatingLength, readName, readContig, readStart);
+			}
+			if (isAccepted(identicals, floatingLength)) {
+				ungappedMatches.increment();
+				return toResult(aligner, floatingLength, readName, readContig, readStart);
+			}
+		}
+
+		AlignmentKey key = null;
+		if (cache != null) {
+			key = new AlignmentKey(eventId, readBases, floatingOffset, floatingLength);
+			CachedAlignment cached = cache.getIfPresent(key);
+			if (cached != null) {
+				if (cached == CachedAlignment.REJECTED) {
+					gappedRejections.increment();
+					return null;
+				}
+				gappedMatches.increment();
+				return new AlignmentResult(cached.bases1, cached.bases2, cached.identicals, floatingLength, readName,
+						readContig, readStart);
+			}
+		}
+
+		// an accepted alignment has more than 90% of the floating bases
+		// identical, it cannot be placed further from the flank than that
+		aligner.align(readBases, floatingOffset, floatingLength, flank, 0, flankLength, floatingLength / 10 + 1);
+		if (isAccepted(aligner.getIdenticals(), floatingLength)) {
+			gappedMatches.increment();
+			AlignmentResult result = toResult(aligner, floatingLength, readName, readContig, readStart);
+			if (cache != null) {
+				cache.put(key, new CachedAlignment(result.getBases1(), result.getBases2(), result.getIdentical()));
+			}
+			return result;
+		}
+		gappedRejections.increment();
+		if (cache != null) {
+			cache.put(key, CachedAlignment.REJECTED);
+		}
+		return null;
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of the bases
+	 */
+	private static long hash(byte[] bases) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < bases.length; i++) {
+			hash ^= bases[i];
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	private static boolean isAccepted(int identicals, int floatingLength) {
+		return identicals >= MIN_IDENTICALS && identicals > (MIN_IDENTITY * floatingLength);
+	}
+
+	private static AlignmentResult toResult(BandedLocalAligner aligner, int floatingLength, String readName,
+			String readContig, int readStart) {
+		String[] aligned = aligner.getAlignedStrings();
+		return new AlignmentResult(aligned[0], aligned[1], aligner.getIdenticals(), floatingLength, readName,
+				readContig, readStart);
+	}
+
+	public long getExactMatches() {
+		return exactMatches.sum();
+	}
+
+	public long getUngappedMatches() {
+		return ungappedMatches.sum();
+	}
+
+	public long getGappedMatches() {
+		return gappedMatches.sum();
+	}
+
+	public long getGappedRejections() {
+		return gappedRejections.sum();
+	}
+
+	/**
+	 * @return statistics of the gapped alignment cache, null if the cache is
+	 *         disabled
+	 */
+	public CacheStats getCacheStats() {
+		return cache == null ? null : cache.stats();
+	}
+
+	@Override
+	public String toString() {
+		String tiers = "exact " + getExactMatches() + ", ungapped " + getUngappedMatches() + ", gapped "
+				+ getGappedMatches() + ", rejected after gapped alignment " + getGappedRejections();
+		if (cache == null) {
+			return tiers;
+		}
+		CacheStats stats = cache.stats();
+		return tiers + ", alignment cache hit ratio " + String.format("%.3f", stats.hitRate()) + " ("
+				+ stats.hitCount() + " hits, " + stats.missCount() + " misses, " + stats.evictionCount()
+				+ " evictions)";
+	}
+}
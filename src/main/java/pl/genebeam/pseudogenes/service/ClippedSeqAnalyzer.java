@@ -1,230 +1,289 @@
 package pl.genebeam.pseudogenes.service;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.SortedSet;
-
-import org.apache.commons.lang3.StringUtils;
-import org.biojava.nbio.alignment.Alignments;
-import org.biojava.nbio.alignment.Alignments.PairwiseSequenceAlignerType;
-import org.biojava.nbio.alignment.SimpleGapPenalty;
-import org.biojava.nbio.core.alignment.matrices.SubstitutionMatrixHelper;
-import org.biojava.nbio.core.alignment.template.SequencePair;
-import org.biojava.nbio.core.alignment.template.SubstitutionMatrix;
-import org.biojava.nbio.core.sequence.DNASequence;
-import org.biojava.nbio.core.sequence.compound.AmbiguityDNACompoundSet;
-import org.biojava.nbio.core.sequence.compound.NucleotideCompound;
-
-import com.google.common.collect.Range;
-
-import htsjdk.samtools.CigarElement;
-import htsjdk.samtools.CigarOperator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
 import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.reference.ReferenceSequenceFile;
+import pl.genebeam.pseudogenes.helpers.JunctionCatalog;
+import pl.genebeam.pseudogenes.helpers.JunctionClipCounter;
+import pl.genebeam.pseudogenes.helpers.JunctionClipCounter.PendingClip;
+import pl.genebeam.pseudogenes.helpers.JunctionEvent;
+import pl.genebeam.pseudogenes.helpers.JunctionFlanks;
+import pl.genebeam.pseudogenes.helpers.ReadCigarIndex;
 import pl.genebeam.pseudogenes.helpers.Report;
 import pl.genebeam.pseudogenes.helpers.Transcript;
 import pl.genebeam.pseudogenes.model.AlignmentResult;
+import pl.genebeam.utils.MappedFastaReference;
 
 public class ClippedSeqAnalyzer {
 	private static final org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(ClippedSeqAnalyzer.class);
 	private static final boolean TRACE = true;
 
-	public void analyzeClippedSeq(SAMRecord read, Collection<Transcript> transcripts,
-			ReferenceSequenceFile referenceSequenceFile, boolean onlySoftClipped, Report report) {
+	private final JunctionCatalog junctionCatalog;
+	/**
+	 * unique junction events covered by the current read, reused by every
+	 * worker thread
+	 */
+	private final ThreadLocal<List<JunctionEvent>> coveredEvents = ThreadLocal.withInitial(ArrayList::new);
+	private final ThreadLocal<ReadCigarIndex> cigarIndexes = ThreadLocal.withInitial(ReadCigarIndex::new);
+	private final ClipMatcher clipMatcher;
+	private final JunctionFlanks junctionFlanks;
+	private final ThreadLocal<byte[]> flankBuffers;
+	/**
+	 * used only for floating sequences longer than the flank table holds
+	 */
+	private final MappedFastaReference reference;
+	/**
+	 * null if every clip is aligned
+	 */
+	private final JunctionClipCounter clipCounter;
+	/**
+	 * clips not aligned because all their introns were saturated
+	 */
+	private final LongAdder saturationSkips = new LongAdder();
+
+	/**
+	 * @param minJunctionClips
+	 *            clips are aligned only at junctions crossed by at least that
+	 *            many clipped reads, earlier clips are held back until the
+	 *            junction reaches it
+	 */
+	public ClippedSeqAnalyzer(JunctionCatalog junctionCatalog, JunctionFlanks junctionFlanks,
+			MappedFastaReference reference, int alignmentCacheSize, int minJunctionClips) {
+		this.junctionCatalog = junctionCatalog;
+		this.clipCounter = minJunctionClips > 1 ? new JunctionClipCounter(junctionCatalog.size(), minJunctionClips)
+				: null;
+		this.clipMatcher = new ClipMatcher(alignmentCacheSize);
+		this.junctionFlanks = junctionFlanks;
+		this.reference = reference;
+		this.flankBuffers = ThreadLocal.withInitial(() -> new byte[junctionFlanks.getMaxFlankLength()]);
+	}
+
+	/**
+	 * Align the clipped parts of the read to the neighbour exons of the
+	 * covered junctions. Every unique junction event is aligned once and the
+	 * result is reported for all covered transcripts sharing it.
+	 */
+	public void analyzeClippedSeq(SAMRecord read, Collection<Transcript> transcripts, boolean onlySoftClipped,
+			Report report) {
 		// is mapped
 		int unclippedStart = read.getUnclippedStart();
 		int unclippedEnd = read.getUnclippedEnd();
 
-		boolean mayContainInformationAboutIntronRemoval = false;
-
-		// end of the soft clipped left part of the read
-		Integer softClippedLeftEnd = null;
-		// start of the soft clipped right part of the read
-		Integer softClippedRightStart = null;
-
-		int position = 0;
-		for (CigarElement element : read.getCigar().getCigarElements()) {
-			CigarOperator operator = element.getOperator();
-			if (CigarOperator.SOFT_CLIP.equals(operator) || CigarOperator.DELETION.equals(operator)) {
-				if (CigarOperator.SOFT_CLIP.equals(operator)) {
-					if (position == 0) {
-						softClippedLeftEnd = element.getLength();
-					} else {
-						softClippedRightStart = position;
-					}
-					mayContainInformationAboutIntronRemoval = true;
-				} else if (CigarOperator.DELETION.equals(operator)) {
-					if (!onlySoftClipped)
-						mayContainInformationAboutIntronRemoval = true;
+		ReadCigarIndex cigarIndex = cigarIndexes.get();
+		cigarIndex.reset(read);
+		boolean mayContainInformationAboutIntronRemoval = cigarIndex.isSoftClipped()
+				|| (!onlySoftClipped && cigarIndex.hasDeletion());
+		if (!mayContainInformationAboutIntronRemoval)
+			return;
+
+		// end of the soft clipped left part of the read, start of the soft
+		// clipped right part of the read; -1 if not clipped
+		int softClippedLeftEnd = cigarIndex.getSoftClippedLeftEnd();
+		int softClippedRightStart = cigarIndex.getSoftClippedRightStart();
+
+		List<JunctionEvent> events = coveredEvents.get();
+		events.clear();
+		for (Transcript transcript : transcripts) {
+			junctionCatalog.eventsIn(transcript, unclippedStart, unclippedEnd, events);
+		}
+		if (events.isEmpty()) {
+			return;
+		}
+
+		// read spans a junction site
+		byte[] readBases = read.getReadBases();
+		for (JunctionEvent event : events) {
+			int junctionReference = event.getJunction();
+			int junctionRead = cigarIndex.readPositionAt(junctionReference) - 1;
+			if (junctionRead == -1) {
+				// we are out of the read, probably due to the soft clipping
+				if (event.isExonStart() && softClippedLeftEnd != -1) {
+					junctionRead = softClippedLeftEnd;
+				} else if (!event.isExonStart() && softClippedRightStart != -1) {
+					junctionRead = softClippedRightStart;
+				} else {
+					// read does not support any simple theory, omit it now
+					log.trace(
+							"According to the pseudogene theory: Shouldn't be here, we have a junction and no base at this place but no correct soft clipped part detected for read "
+									+ read.getStart() + ": " + read.getReadName());
+					continue;
 				}
 			}
-			position += element.getLength();
+			if (junctionRead > readBases.length) {
+				// soft clipped part reported beyond the read bases
+				continue;
+			}
+
+			int floatingOffset;
+			int floatingLength;
+			if (event.isExonStart()) {
+				floatingOffset = 0;
+				floatingLength = junctionRead;
+			} else {
+				floatingOffset = junctionRead;
+				floatingLength = readBases.length - junctionRead;
+			}
+			if (floatingLength < 5) {
+				// omit..., too small to be considered; too small introns are
+				// not in the catalog
+				continue;
+			}
+
+			if (clipCounter != null) {
+				List<PendingClip> release = clipCounter.count(event.getId(), readBases, floatingOffset, floatingLength,
+						read, transcripts);
+				if (release == null) {
+					// not enough clips at the junction yet, held back
+					continue;
+				}
+				for (PendingClip clip : release) {
+					byte[] floatingSequence = clip.getFloatingSequence();
+					alignAndReport(event, floatingSequence, 0, floatingSequence.length, clip.getReadName(),
+							clip.getReadContig(), clip.getReadStart(), clip.getTranscripts(), report);
+				}
+			}
+			alignAndReport(event, readBases, floatingOffset, floatingLength, read.getReadName(), read.getContig(),
+					read.getStart(), transcripts, report);
 		}
+	}
 
-		if (!mayContainInformationAboutIntronRemoval)
+	/**
+	 * Align the floating sequence to the flank of the event and report the
+	 * result to every covered transcript using the junction
+	 */
+	private void alignAndReport(JunctionEvent event, byte[] bases, int floatingOffset, int floatingLength,
+			String readName, String readContig, int readStart, Collection<Transcript> transcripts, Report report) {
+		if (isSaturated(event, transcripts, report, readStart)) {
+			// the evidence for every covered intron is already decisive
+			for (int i = 0; i < event.getNumberOfTranscripts(); i++) {
+				Transcript transcript = event.getTranscript(i);
+				if (containsSame(transcripts, transcript)) {
+					report.skipByAlign(transcript, event.getIntronIndex(i));
+				}
+			}
+			saturationSkips.increment();
 			return;
+		}
 
-		for (Transcript transcript : transcripts) {
-			SortedSet<Integer> coveredJunctions = transcript
-					.getJunctionsIn(Range.closedOpen(unclippedStart, unclippedEnd));
-
-			if (!coveredJunctions.isEmpty()) {
-				// read spans a junction site
-
-				// if (read.getReadName().endsWith("1216:4199:97110"))
-				// System.out.println("here");
-
-				if (mayContainInformationAboutIntronRemoval) {
-					String readBasesString = read.getReadString();
-
-					for (Integer junctionReference : coveredJunctions) {
-						int junctionRead = read.getReadPositionAtReferencePosition(junctionReference, true) - 1;
-						if (junctionRead == -1) {
-							// we are out of the read, probably due to
-							// the
-							// soft clipping
-
-							if (transcript.isExonStartPoint(junctionReference) && softClippedLeftEnd != null) {
-								junctionRead = softClippedLeftEnd;
-							} else if (transcript.isIntronStartPoint(junctionReference)
-									&& softClippedRightStart != null) {
-								junctionRead = softClippedRightStart;
-							} else {
-								// read does not support any simple
-								// theory,
-								// omit it now
-								log.trace(
-										"According to the pseudogene theory: Shouldn't be here, we have a junction and no base at this place but no correct soft clipped part detected for read "
-												+ read.getStart() + ": " + read.getReadName());
-								continue;
-							}
-
-						}
-
-						String floatingSequence;
-						Integer intronPossiblyRemovedIndex;
-						Integer neighbourExoneIndex;
-						String neighbourExoneSequence;
-						if (transcript.isExonStartPoint(junctionReference)) {
-							floatingSequence = readBasesString.substring(0, junctionRead);
-							intronPossiblyRemovedIndex = transcript.getExonIndexAtPosition(junctionReference) - 1;
-							neighbourExoneIndex = intronPossiblyRemovedIndex;
-							if (neighbourExoneIndex == -1) {
-								// this is a first exone, possibly
-								// removed intron is "before" this exon;
-								// do omit this
-								continue;
-							}
-
-							Range<Integer> neighbourExoneRange = transcript.getExonWithIndex(neighbourExoneIndex);
-							neighbourExoneSequence = new String(
-									referenceSequenceFile.getSubsequenceAt(transcript.getChr(),
-											neighbourExoneRange.upperEndpoint() - floatingSequence.length() - 10,
-											neighbourExoneRange.upperEndpoint()).getBases());
-
-						} else {
-							try {
-								floatingSequence = readBasesString.substring(junctionRead);
-							} catch (Exception e) {
-								System.out.println(e);
-								read.getReadPositionAtReferencePosition(junctionReference, true);
-								floatingSequence = "";
-							}
-
-							intronPossiblyRemovedIndex = transcript.getIntronIndexAtPosition(junctionReference);
-							if (intronPossiblyRemovedIndex == null) {
-								// this was the last exone, our introne
-								// is after the gene; just continue;
-								continue;
-							}
-							neighbourExoneIndex = intronPossiblyRemovedIndex + 1;
-							Range<Integer> neighbourExoneRange = transcript.getExonWithIndex(neighbourExoneIndex);
-
-							neighbourExoneSequence = new String(referenceSequenceFile
-									.getSubsequenceAt(transcript.getChr(), neighbourExoneRange.lowerEndpoint(),
-											neighbourExoneRange.lowerEndpoint() + floatingSequence.length() + 5)
-									.getBases());
-						}
-
-						Range<Integer> intronPossiblyRemovedRange = transcript
-								.getIntronWithIndex(intronPossiblyRemovedIndex);
-						int intronPossiblyRemovedSize = intronPossiblyRemovedRange.upperEndpoint()
-								- intronPossiblyRemovedRange.lowerEndpoint();
-						if (floatingSequence.length() < 5 || intronPossiblyRemovedSize < 10) {
-							// omit..., too small to be considered
-						} else {
-							AlignmentResult ar = alignsToNeighourExone(floatingSequence, neighbourExoneSequence, read);
-							if (ar != null) {
-
-								// let's consider
-								// intronPossiblyRemovedIndex
-								// as removed
-								if (log.isTraceEnabled()) {
-									log.trace("Considering intron " + intronPossiblyRemovedIndex + " as removed, "
-											+ transcript.getGene());
-								}
-
-								report.addByAlign(transcript, intronPossiblyRemovedIndex, read, ar);
-							} else {
-								if (log.isTraceEnabled()) {
-									log.trace("NOT Considering intron " + intronPossiblyRemovedIndex + " as removed");
-								}
-							}
-
-							// log.debug(read.getUnclippedStart() + ":"
-							// +
-							// read.getReadName() + "\n" +
-							// psa.toString());
-						}
-					}
+		byte[] neighbourExoneBases;
+		int neighbourExoneLength;
+		if (floatingLength <= junctionFlanks.getMaxFloatingLength()) {
+			neighbourExoneBases = flankBuffers.get();
+			neighbourExoneLength = junctionFlanks.copyFlank(event, floatingLength, neighbourExoneBases);
+			if (neighbourExoneLength == -1) {
+				// flank out of the reference
+				reject(event, transcripts, readStart, report);
+				return;
+			}
+		} else {
+			neighbourExoneBases = fetchFlank(event, floatingLength);
+			neighbourExoneLength = neighbourExoneBases.length;
+		}
+
+		// the floating sequence is expected right before the end of the
+		// previous exon or right at the start of the next one
+		AlignmentResult ar = clipMatcher.match(event.getId(), bases, floatingOffset, floatingLength,
+				neighbourExoneBases, neighbourExoneLength, event.isExonStart() ? JunctionFlanks.EXON_START_EXTRA : 0,
+				readName, readContig, readStart);
+		// the same alignment holds for every covered isoform using the
+		// junction
+		for (int i = 0; i < event.getNumberOfTranscripts(); i++) {
+			Transcript transcript = event.getTranscript(i);
+			if (!containsSame(transcripts, transcript)) {
+				continue;
+			}
+			int intronPossiblyRemovedIndex = event.getIntronIndex(i);
+			if (ar != null) {
+				// let's consider intronPossiblyRemovedIndex as removed
+				if (log.isTraceEnabled()) {
+					log.trace("Considering intron " + intronPossiblyRemovedIndex + " as removed, "
+							+ transcript.getGene());
+				}
+
+				report.addByAlign(transcript, intronPossiblyRemovedIndex, ar);
+			} else {
+				if (log.isTraceEnabled()) {
+					log.trace("NOT Considering intron " + intronPossiblyRemovedIndex + " as removed");
 				}
+				report.rejectByAlign(transcript, intronPossiblyRemovedIndex, readStart);
 			}
 		}
 	}
 
-	private AlignmentResult alignsToNeighourExone(String floatingSequence, String neighbourExoneSequence,
-			SAMRecord read) {
-		// if (neighbourExoneSequence.endsWith(floatingSequence) ||
-		// neighbourExoneSequence.startsWith(floatingSequence)) {
-		// // fast check for exact alignment
-		// return new AlignmentResult(floatingSequence, neighbourExoneSequence,
-		// floatingSequence.);
-		// } else {
-		// do full alignment
-		SequencePair<DNASequence, NucleotideCompound> psa = align(floatingSequence, neighbourExoneSequence);
-		if (psa.getNumIdenticals() >= 5 && psa.getNumIdenticals() > (0.9 * floatingSequence.length())) {
-			if (log.isTraceEnabled()) {
-				log.trace("Alignment: \n" + psa.toString());
+	private static void reject(JunctionEvent event, Collection<Transcript> transcripts, int readStart, Report report) {
+		for (int i = 0; i < event.getNumberOfTranscripts(); i++) {
+			Transcript transcript = event.getTranscript(i);
+			if (containsSame(transcripts, transcript)) {
+				report.rejectByAlign(transcript, event.getIntronIndex(i), readStart);
 			}
+		}
+	}
 
-			String alignedString = psa.toString();
+	/**
+	 * @return true if the introns of all covered transcripts using the
+	 *         junction reached the saturation cap with reads starting before
+	 *         the read
+	 */
+	private static boolean isSaturated(JunctionEvent event, Collection<Transcript> transcripts, Report report,
+			int readStart) {
+		boolean covered = false;
+		for (int i = 0; i < event.getNumberOfTranscripts(); i++) {
+			Transcript transcript = event.getTranscript(i);
+			if (!containsSame(transcripts, transcript)) {
+				continue;
+			}
+			if (!report.isSaturatedByAlign(transcript, event.getIntronIndex(i), readStart)) {
+				return false;
+			}
+			covered = true;
+		}
+		return covered;
+	}
 
-			return new AlignmentResult(StringUtils.substringBefore(alignedString, "\n"),
-					StringUtils.substringAfter(alignedString, "\n").replace("\n", ""), psa.getNumIdenticals(),
-					floatingSequence.length(), read.getReadName(), read.getContig(), read.getStart());
-		} else {
-			return null;
+	private static boolean containsSame(Collection<Transcript> transcripts, Transcript transcript) {
+		for (Transcript t : transcripts) {
+			if (t == transcript) {
+				return true;
+			}
 		}
-		// }
+		return false;
 	}
 
-	private SequencePair<DNASequence, NucleotideCompound> align(String querySeq, String targetSeq) {
-		try {
-			DNASequence target = new DNASequence(targetSeq, AmbiguityDNACompoundSet.getDNACompoundSet());
-			DNASequence query = new DNASequence(querySeq, AmbiguityDNACompoundSet.getDNACompoundSet());
-			SubstitutionMatrix<NucleotideCompound> matrix = SubstitutionMatrixHelper.getNuc4_4();
+	/**
+	 * Flank for a floating sequence longer than the flank table was built
+	 * for, read from the reference
+	 */
+	private byte[] fetchFlank(JunctionEvent event, int floatingLength) {
+		int boundary = event.getNeighbourExonBoundary();
+		if (event.isExonStart()) {
+			return reference.getBases(event.getContig(), boundary - floatingLength - JunctionFlanks.EXON_START_EXTRA,
+					boundary);
+		} else {
+			return reference.getBases(event.getContig(), boundary,
+					boundary + floatingLength + JunctionFlanks.INTRON_START_EXTRA);
+		}
+	}
 
-			SimpleGapPenalty gapP = new SimpleGapPenalty();
-			gapP.setOpenPenalty((short) 5);
-			gapP.setExtensionPenalty((short) 2);
+	public ClipMatcher getClipMatcher() {
+		return clipMatcher;
+	}
 
-			SequencePair<DNASequence, NucleotideCompound> psa = Alignments.getPairwiseAlignment(query, target,
-					PairwiseSequenceAlignerType.LOCAL, gapP, matrix);
+	/**
+	 * @return number of clips not aligned because all their introns were
+	 *         saturated
+	 */
+	public long getSaturationSkips() {
+		return saturationSkips.sum();
+	}
 
-			return psa;
-		} catch (Exception e) {
-			log.error("Exception", e);
-		}
-		return null;
+	/**
+	 * @return null if every clip is aligned
+	 */
+	public JunctionClipCounter getClipCounter() {
+		return clipCounter;
 	}
 
 }
@@ -2,8 +2,13 @@ package pl.genebeam.pseudogenes.service;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashSet;
-import java.util.Optional;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -16,27 +21,67 @@ import org.biojava.nbio.genome.parsers.gff.FeatureList;
 import org.biojava.nbio.genome.parsers.gff.GeneMarkGTFReader;
 import org.biojava.nbio.genome.parsers.gff.Location;
 
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Multimap;
 import com.google.common.collect.Range;
 
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
 import htsjdk.samtools.SAMRecord;
+import pl.genebeam.pseudogenes.helpers.AnnotationBundle;
 import pl.genebeam.pseudogenes.helpers.Transcript;
 import pl.genebeam.pseudogenes.model.PositionWithEvidence;
 import pl.genebeam.pseudogenes.model.ReadSummary;
 import pl.genebeam.utils.GenomicPosition;
-import pl.genebeam.utils.RangeMultimapGeneral;
+import pl.genebeam.utils.ImmutableRangeMultimap;
 import pl.genebeam.utils.TxNameToGeneName;
 
 public class DisconcordanceAnalyzer {
 	private static final org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(DisconcordanceAnalyzer.class);
 
-	private RangeMultimapGeneral<GenomicPosition, String> referencePseudogenePositions = new RangeMultimapGeneral<>();
-	private RangeMultimapGeneral<GenomicPosition, String> abysovPositions = new RangeMultimapGeneral<>();
+	/**
+	 * built from the intervals once all of them are loaded
+	 */
+	private ImmutableRangeMultimap<GenomicPosition, String> referencePseudogenePositions;
+	private ImmutableRangeMultimap<GenomicPosition, String> abysovPositions;
 	private Set<String> referencePseudogene = new HashSet<>();
 	private Set<String> abyzovGenes = new HashSet<>();
-	final Multimap<Transcript, PositionWithEvidence> disconcordants = ArrayListMultimap.create();
+	/**
+	 * loaded intervals, kept to be written into an annotation bundle
+	 */
+	private final AnnotationBundle.Intervals pseudogeneIntervals = new AnnotationBundle.Intervals();
+	private final AnnotationBundle.Intervals abyzovIntervals = new AnnotationBundle.Intervals();
+	/**
+	 * merged mates of all workers by transcript id; names are not unique, so
+	 * transcripts are kept as the instances that produced the mates, in
+	 * genomic order
+	 */
+	private final TIntObjectHashMap<List<PositionWithEvidence>> disconcordants = new TIntObjectHashMap<>();
+	private final List<Transcript> disconcordantTranscripts = new ArrayList<>();
+	/**
+	 * mates found by every worker thread, by transcript id
+	 */
+	private final ThreadLocal<TIntObjectHashMap<TranscriptMates>> workerDisconcordants = ThreadLocal
+			.withInitial(this::newWorkerDisconcordants);
+	private final List<TIntObjectHashMap<TranscriptMates>> allWorkerDisconcordants = new ArrayList<>();
+	private final static Comparator<ReadSummary> READ_ORDER = Comparator
+			.comparing(ReadSummary::getContig, Comparator.nullsFirst(Comparator.<String>naturalOrder()))
+			.thenComparing(ReadSummary::getPosition, Comparator.nullsFirst(Comparator.<Integer>naturalOrder()))
+			.thenComparing(ReadSummary::getName, Comparator.nullsFirst(Comparator.<String>naturalOrder()));
 	private final static GenomicPosition NOT_DEFINED = new GenomicPosition("_", 0);
+	/**
+	 * position key of mates without a defined position, real keys are
+	 * positive
+	 */
+	private final static long NOT_DEFINED_KEY = -1L;
+	/**
+	 * mates mapped further away are considered disconcordant
+	 */
+	private final static int DISCONCORDANT_MATE_DISTANCE = 20000;
+	/**
+	 * mate starts are clustered in bins of that size during the scan,
+	 * neighbour clusters closer than MATE_CLUSTER_GAP are joined after it
+	 */
+	private final static int MATE_BIN_SIZE = 500;
+	private final static int MATE_CLUSTER_GAP = 100;
 
 	private final TxNameToGeneName txNameToGeneName;
 	private final static Pattern COORDINATE_PATTERN = Pattern
@@ -60,10 +105,8 @@ public class DisconcordanceAnalyzer {
 					if (StringUtils.isNotBlank(coordinates)) {
 						Matcher m = COORDINATE_PATTERN.matcher(coordinates);
 						if (m.matches()) {
-							GenomicPosition start = new GenomicPosition(m.group("chr"),
-									Integer.valueOf(m.group("start")));
-							GenomicPosition end = new GenomicPosition(m.group("chr"), Integer.valueOf(m.group("end")));
-							abysovPositions.put(Range.closed(start, end), geneName);
+							addAbyzovPosition(m.group("chr"), Integer.valueOf(m.group("start")),
+									Integer.valueOf(m.group("end")), geneName);
 
 						} else {
 							log.warn("No match: " + coordinates);
@@ -78,13 +121,63 @@ public class DisconcordanceAnalyzer {
 		} else {
 			// abysov genes will be empty
 		}
+		buildPositions();
+	}
+
+	/**
+	 * Annotations read from a compiled bundle
+	 */
+	public DisconcordanceAnalyzer(AnnotationBundle bundle) {
+		this.txNameToGeneName = bundle.getTxNameToGeneName();
+		AnnotationBundle.Intervals pseudogenes = bundle.getPseudogenes();
+		for (int i = 0; i < pseudogenes.size(); i++) {
+			addPseudogenePosition(pseudogenes.getContig(i), pseudogenes.getStart(i), pseudogenes.getEnd(i),
+					pseudogenes.getValue(i));
+		}
+		AnnotationBundle.Intervals abyzov = bundle.getAbyzovInsertions();
+		for (int i = 0; i < abyzov.size(); i++) {
+			addAbyzovPosition(abyzov.getContig(i), abyzov.getStart(i), abyzov.getEnd(i), abyzov.getValue(i));
+		}
+		referencePseudogene.addAll(bundle.getReferencePseudogeneGenes());
+		abyzovGenes.addAll(bundle.getAbyzovGenes());
+		buildPositions();
+	}
+
+	/**
+	 * @return bundle of the loaded annotations with the given transcripts
+	 */
+	public AnnotationBundle toAnnotationBundle(List<Transcript> transcripts) {
+		return new AnnotationBundle(transcripts, txNameToGeneName, pseudogeneIntervals, referencePseudogene,
+				abyzovIntervals, abyzovGenes);
+	}
+
+	private void addPseudogenePosition(String chr, int start, int end, String ucscId) {
+		pseudogeneIntervals.add(chr, start, end, ucscId);
+	}
+
+	private void addAbyzovPosition(String chr, int start, int end, String geneName) {
+		abyzovIntervals.add(chr, start, end, geneName);
+	}
+
+	private void buildPositions() {
+		referencePseudogenePositions = toRangeMultimap(pseudogeneIntervals);
+		abysovPositions = toRangeMultimap(abyzovIntervals);
+	}
+
+	private static ImmutableRangeMultimap<GenomicPosition, String> toRangeMultimap(
+			AnnotationBundle.Intervals intervals) {
+		ImmutableRangeMultimap.Builder<GenomicPosition, String> builder = ImmutableRangeMultimap.builder();
+		for (int i = 0; i < intervals.size(); i++) {
+			String chr = intervals.getContig(i);
+			builder.put(Range.closed(new GenomicPosition(chr, intervals.getStart(i)),
+					new GenomicPosition(chr, intervals.getEnd(i))), intervals.getValue(i));
+		}
+		return builder.build();
 	}
 
 	private void addKnownPseudogene(FeatureI feature) {
 		Location location = feature.location();
-		referencePseudogenePositions.put(
-				Range.closed(new GenomicPosition(feature.seqname(), Math.abs(location.getBegin())),
-						new GenomicPosition(feature.seqname(), Math.abs(location.getEnd()))),
+		addPseudogenePosition(feature.seqname(), Math.abs(location.getBegin()), Math.abs(location.getEnd()),
 				feature.getAttribute("ucsc_id"));
 
 		String ucscId = StringUtils.substringBefore(feature.getAttribute("ucsc_id"), ".");
@@ -94,6 +187,31 @@ public class DisconcordanceAnalyzer {
 
 	}
 
+	/**
+	 * Windows used to look for annotated pseudogenes and insertions around
+	 * the mate cluster: the margin around every distinct mate start, windows
+	 * overlapping or touching each other joined. Gaps between mates of a
+	 * cluster are not searched.
+	 *
+	 * @return windows sorted by position
+	 */
+	public static List<Range<GenomicPosition>> annotationWindows(PositionWithEvidence pwe, int margin) {
+		String chr = pwe.getPosition().getChr();
+		List<Range<GenomicPosition>> windows = new ArrayList<>();
+		int[] mateStarts = pwe.getMateStarts();
+		int i = 0;
+		while (i < mateStarts.length) {
+			int first = mateStarts[i];
+			while (i + 1 < mateStarts.length && mateStarts[i + 1] - mateStarts[i] <= 2 * margin + 1) {
+				i++;
+			}
+			windows.add(Range.closed(new GenomicPosition(chr, first - margin),
+					new GenomicPosition(chr, mateStarts[i] + margin)));
+			i++;
+		}
+		return windows;
+	}
+
 	public Set<String> findPseudogenesIn(Range<GenomicPosition> range) {
 		return referencePseudogenePositions.get(range);
 	}
@@ -102,6 +220,24 @@ public class DisconcordanceAnalyzer {
 		return abysovPositions.get(range);
 	}
 
+	/**
+	 * Annotated pseudogenes in many ranges, joined in a single sweep
+	 *
+	 * @return pseudogenes found in every range, in the order of ranges
+	 */
+	public List<Set<String>> findPseudogenesIn(List<Range<GenomicPosition>> ranges) {
+		return referencePseudogenePositions.getAll(ranges);
+	}
+
+	/**
+	 * Abyzov insertions in many ranges, joined in a single sweep
+	 *
+	 * @return genes found in every range, in the order of ranges
+	 */
+	public List<Set<String>> findHitsAbyzovOf(List<Range<GenomicPosition>> ranges) {
+		return abysovPositions.getAll(ranges);
+	}
+
 	public boolean isAbysov(String geneName) {
 		return abyzovGenes.contains(geneName);
 	}
@@ -110,7 +246,26 @@ public class DisconcordanceAnalyzer {
 		return referencePseudogene.contains(geneName);
 	}
 
-	public void analyzeDisconcordant(SAMRecord read, Set<Transcript> transcriptCoveredByRead) {
+	/**
+	 * Mates of one transcript found by one worker, by the position key
+	 */
+	private static final class TranscriptMates {
+		private final Transcript transcript;
+		private final TLongObjectHashMap<PositionWithEvidence> byPosition = new TLongObjectHashMap<>();
+
+		TranscriptMates(Transcript transcript) {
+			this.transcript = transcript;
+		}
+	}
+
+	/**
+	 * @return mate contig index and mate position bin packed in a single key
+	 */
+	private static long positionKey(int mateReferenceIndex, int mateStart) {
+		return ((long) mateReferenceIndex << 31) | (mateStart / MATE_BIN_SIZE);
+	}
+
+	public void analyzeDisconcordant(SAMRecord read, Collection<Transcript> transcriptCoveredByRead) {
 		if (read.getReadPairedFlag()) {
 			ReadSummary readSummary = new ReadSummary();
 			readSummary.setName(read.getReadName());
@@ -118,52 +273,164 @@ public class DisconcordanceAnalyzer {
 			readSummary.setPosition(read.getStart());
 
 			if (!read.getMateUnmappedFlag()) {
-				if (!read.getReferenceName().equals(read.getMateReferenceName())
-						|| (Math.abs(read.getAlignmentStart() - read.getMateAlignmentStart()) > 20000)) {
-					GenomicPosition gp = new GenomicPosition(read.getMateReferenceName(), read.getMateAlignmentStart());
+				int mateReferenceIndex = read.getMateReferenceIndex();
+				int mateStart = read.getMateAlignmentStart();
+				if (mateReferenceIndex != read.getReferenceIndex()
+						|| (Math.abs(read.getAlignmentStart() - mateStart) > DISCONCORDANT_MATE_DISTANCE)) {
+					long key = positionKey(mateReferenceIndex, mateStart);
 					for (Transcript t : transcriptCoveredByRead) {
-						synchronized (disconcordants) {
-							Optional<PositionWithEvidence> samePlace = disconcordants.get(t).stream()
-									.filter(x -> x.getPosition().equals(gp)).findAny();
-							if (samePlace.isPresent()) {
-								samePlace.get().getReads().add(readSummary);
-							} else {
-								PositionWithEvidence pwe = new PositionWithEvidence();
-								pwe.setPosition(gp);
-								Set<ReadSummary> list = new HashSet<>();
-								list.add(readSummary);
-								pwe.setReads(list);
-								disconcordants.put(t, pwe);
-							}
+						PositionWithEvidence pwe = getEvidence(t, key);
+						if (pwe.getPosition() == null) {
+							// set to the centroid once the scan is over
+							pwe.setPosition(new GenomicPosition(read.getMateReferenceName(), mateStart));
 						}
+						pwe.add(mateStart, readSummary);
 					}
 				}
 			} else {
 				for (Transcript t : transcriptCoveredByRead) {
-					synchronized (disconcordants) {
-						// add to existing "not defined" if exists,
-						// otherwise:
-						// create new "not defined"
-						Optional<PositionWithEvidence> notDefined = disconcordants.get(t).stream()
-								.filter(x -> x.getPosition().equals(NOT_DEFINED)).findAny();
-						if (notDefined.isPresent()) {
-
-							notDefined.get().getReads().add(readSummary);
+					// add to existing "not defined" if exists, otherwise:
+					// create new "not defined"
+					PositionWithEvidence pwe = getEvidence(t, NOT_DEFINED_KEY);
+					if (pwe.getPosition() == null) {
+						pwe.setPosition(NOT_DEFINED);
+					}
+					pwe.add(0, readSummary);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return evidence of the current worker for the transcript and the mate
+	 *         position key, a new one has no position set
+	 */
+	private PositionWithEvidence getEvidence(Transcript t, long key) {
+		TIntObjectHashMap<TranscriptMates> disconcordantsOfWorker = workerDisconcordants.get();
+		TranscriptMates mates = disconcordantsOfWorker.get(t.getId());
+		if (mates == null) {
+			mates = new TranscriptMates(t);
+			disconcordantsOfWorker.put(t.getId(), mates);
+		}
+		PositionWithEvidence pwe = mates.byPosition.get(key);
+		if (pwe == null) {
+			pwe = new PositionWithEvidence();
+			pwe.setReads(new HashSet<>());
+			mates.byPosition.put(key, pwe);
+		}
+		return pwe;
+	}
+
+	private TIntObjectHashMap<TranscriptMates> newWorkerDisconcordants() {
+		TIntObjectHashMap<TranscriptMates> disconcordantsOfWorker = new TIntObjectHashMap<>();
+		synchronized (allWorkerDisconcordants) {
+			allWorkerDisconcordants.add(disconcordantsOfWorker);
+		}
+		return disconcordantsOfWorker;
+	}
+
+	/**
+	 * Merge the mate clusters collected by all worker threads and join
+	 * neighbour clusters, has to be called once the scan is over. Transcripts
+	 * come in genomic order, clusters and reads sorted, so the result does not
+	 * depend on the number of threads.
+	 */
+	public void mergeWorkerDisconcordants() {
+		TIntObjectHashMap<TranscriptMates> merged = new TIntObjectHashMap<>();
+		synchronized (allWorkerDisconcordants) {
+			for (TIntObjectHashMap<TranscriptMates> disconcordantsOfWorker : allWorkerDisconcordants) {
+				for (TranscriptMates mates : disconcordantsOfWorker.valueCollection()) {
+					TranscriptMates mergedMates = merged.get(mates.transcript.getId());
+					if (mergedMates == null) {
+						merged.put(mates.transcript.getId(), mates);
+						continue;
+					}
+					for (long key : mates.byPosition.keys()) {
+						PositionWithEvidence pwe = mates.byPosition.get(key);
+						PositionWithEvidence mergedPwe = mergedMates.byPosition.get(key);
+						if (mergedPwe == null) {
+							mergedMates.byPosition.put(key, pwe);
 						} else {
-							PositionWithEvidence pwe = new PositionWithEvidence();
-							pwe.setPosition(NOT_DEFINED);
-							Set<ReadSummary> list = new HashSet<>();
-							list.add(readSummary);
-							pwe.setReads(list);
-							disconcordants.put(t, pwe);
+							mergedPwe.mergeFrom(pwe);
 						}
 					}
 				}
 			}
+			allWorkerDisconcordants.clear();
 		}
+
+		int[] ids = merged.keys();
+		Arrays.sort(ids);
+		for (int id : ids) {
+			TranscriptMates mates = merged.get(id);
+			List<PositionWithEvidence> clusters = joinNeighbours(mates.byPosition.valueCollection());
+			for (PositionWithEvidence pwe : clusters) {
+				List<ReadSummary> reads = new ArrayList<>(pwe.getReads());
+				reads.sort(READ_ORDER);
+				pwe.setReads(new LinkedHashSet<>(reads));
+			}
+			disconcordants.put(id, clusters);
+			disconcordantTranscripts.add(mates.transcript);
+		}
+	}
+
+	/**
+	 * Join clusters of the same contig split by a bin border or closer than
+	 * MATE_CLUSTER_GAP and move every cluster position to its centroid
+	 *
+	 * @return clusters sorted by position
+	 */
+	private static List<PositionWithEvidence> joinNeighbours(Collection<PositionWithEvidence> bins) {
+		List<PositionWithEvidence> sorted = new ArrayList<>(bins);
+		sorted.sort(Comparator.comparing((PositionWithEvidence pwe) -> pwe.getPosition().getChr())
+				.thenComparingInt(PositionWithEvidence::getStart));
+		List<PositionWithEvidence> clusters = new ArrayList<>();
+		PositionWithEvidence current = null;
+		for (PositionWithEvidence pwe : sorted) {
+			if (current != null && current.getPosition() != NOT_DEFINED
+					&& current.getPosition().getChr().equals(pwe.getPosition().getChr())
+					&& pwe.getStart() - current.getEnd() <= MATE_CLUSTER_GAP) {
+				current.mergeFrom(pwe);
+			} else {
+				current = pwe;
+				clusters.add(current);
+			}
+		}
+		for (PositionWithEvidence cluster : clusters) {
+			if (cluster.getPosition() != NOT_DEFINED) {
+				cluster.setPosition(new GenomicPosition(cluster.getPosition().getChr(), cluster.getCentroid()));
+			}
+		}
+		clusters.sort(Comparator.<PositionWithEvidence>naturalOrder()
+				.thenComparing(pwe -> pwe.getPosition().getChr()));
+		return clusters;
+	}
+
+	/**
+	 * Cheap check based only on flags: true if the mate of a mapped read is
+	 * mapped to another contig or far away
+	 */
+	public static boolean hasDisconcordantMate(SAMRecord read) {
+		return read.getReadPairedFlag() && !read.getMateUnmappedFlag()
+				&& (read.getMateReferenceIndex().intValue() != read.getReferenceIndex().intValue() || Math
+						.abs(read.getAlignmentStart() - read.getMateAlignmentStart()) > DISCONCORDANT_MATE_DISTANCE);
 	}
 
-	public Multimap<Transcript, PositionWithEvidence> getDisconcordants() {
+	public static boolean hasUnmappedMate(SAMRecord read) {
+		return read.getReadPairedFlag() && read.getMateUnmappedFlag();
+	}
+
+	/**
+	 * @return mate clusters by transcript id
+	 */
+	public TIntObjectHashMap<List<PositionWithEvidence>> getDisconcordants() {
 		return disconcordants;
 	}
+
+	/**
+	 * @return transcripts with mate clusters, in order of their ids
+	 */
+	public List<Transcript> getDisconcordantTranscripts() {
+		return disconcordantTranscripts;
+	}
 }
@@ -1,7 +1,6 @@
 package pl.genebeam.pseudogenes.service;
 
 import java.util.Collection;
-import java.util.Objects;
 
 import com.google.common.collect.Range;
 
@@ -59,24 +58,24 @@ public class InsertSizeAnalyzer {
 						return;
 					}
 
+					int from = readRange.lowerEndpoint(), to = readRange.upperEndpoint();
 					for (Transcript transcript : transcripts) {
-						if (!transcript.getJunctionsIn(readRange).isEmpty()) {
+						if (transcript.hasJunctionIn(from, to)) {
 							// transcript.getExonesIn(readRange);
-							Collection<Integer> intronesContained = transcript.getIntronesIn(readRange);
-							int intronesSize = intronesContained.stream().map(transcript::getIntronWithIndex)
-									.filter(Objects::nonNull).mapToInt((x) -> x.upperEndpoint() - x.lowerEndpoint())
-									.sum();
+							int intronesSize = transcript.intronesLengthIn(from, to);
 
 							// int intronesSizeReal =
 							// transcript.getIntronesSizesIn(readRange);
 
 							int insertSizeWithoutIntron = insertSize - intronesSize;
 							if (!isUnusualInsertSize(insertSizeWithoutIntron)) {
-								log.trace("Intrones " + intronesContained + " are considered REMOVED (" + insertSize
-										+ " > " + insertSizeWithoutIntron + ")" + read.getReadName());
+								if (log.isTraceEnabled()) {
+									log.trace("Intrones " + transcript.getIntronesIn(readRange)
+											+ " are considered REMOVED (" + insertSize + " > " + insertSizeWithoutIntron
+											+ ")" + read.getReadName());
+								}
 
-								// FIXME this
-								// intronesContained.stream().findFirst().get()
+								// FIXME taking only the first enclosed intron
 								// is not fully correct
 
 								// the common case is when one of the reads does
@@ -84,13 +83,13 @@ public class InsertSizeAnalyzer {
 								// removed... but we probably don't have enough
 								// data to know that
 
-								report.addByInsertSize(transcript, intronesContained.stream().findFirst().get(), read);
+								report.addByInsertSize(transcript, transcript.firstIntronIn(from, to));
 
-							} else {
-								log.trace("Intrones " + intronesContained + " are strange, we have cannot decide ("
-										+ insertSize + " > " + insertSizeWithoutIntron + ") [" + chr + ":"
-										+ read.getStart() + "-" + read.getMateAlignmentStart() + "] "
-										+ read.getReadName());
+							} else if (log.isTraceEnabled()) {
+								log.trace("Intrones " + transcript.getIntronesIn(readRange)
+										+ " are strange, we have cannot decide (" + insertSize + " > "
+										+ insertSizeWithoutIntron + ") [" + chr + ":" + read.getStart() + "-"
+										+ read.getMateAlignmentStart() + "] " + read.getReadName());
 							}
 						}
 					}
@@ -114,7 +113,20 @@ public class InsertSizeAnalyzer {
 		}
 	}
 
-	private boolean isUnusualInsertSize(int insertSize) {
+	/**
+	 * Cheap check based only on flags and the insert size: false if
+	 * analyzeInsertSize would surely ignore this read
+	 */
+	public static boolean mayBeInformative(SAMRecord read) {
+		if (!read.getReadPairedFlag() || read.getMateUnmappedFlag()) {
+			return false;
+		}
+		int insertSize = Math.abs(read.getInferredInsertSize());
+		return insertSize != 0 && read.getMateReferenceIndex().intValue() == read.getReferenceIndex().intValue()
+				&& insertSize < TOO_BIG_INSERT_SIZE_LIMIT && isUnusualInsertSize(insertSize);
+	}
+
+	private static boolean isUnusualInsertSize(int insertSize) {
 		return insertSize > UNUSUAL_INSERT_SIZE_LIMIT_MAX || insertSize < UNUSUAL_INSERT_SIZE_LIMIT_MIN;
 	}
 
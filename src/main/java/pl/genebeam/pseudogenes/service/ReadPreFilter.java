@@ -0,0 +1,107 @@
+package pl.genebeam.pseudogenes.service;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMRecord;
+
+/**
+ * First stage of read processing, run before the transcript lookup. A mapped
+ * read is passed on only if at least one analyzer may use it: it has a soft
+ * clip or a deletion (ClippedSeqAnalyzer), an unusual insert size
+ * (InsertSizeAnalyzer) or a disconcordant or unmapped mate
+ * (DisconcordanceAnalyzer). The checks use only flags, the insert size and the
+ * CIGAR the read already holds, nothing is allocated for rejected reads.
+ * 
+ * @author pstawinski
+ *
+ */
+public class ReadPreFilter {
+	private final boolean onlySoftClipped;
+
+	private final LongAdder keptByUnmappedMate = new LongAdder();
+	private final LongAdder keptByDisconcordantMate = new LongAdder();
+	private final LongAdder keptByInsertSize = new LongAdder();
+	private final LongAdder keptBySoftClip = new LongAdder();
+	private final LongAdder keptByDeletion = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+
+	public ReadPreFilter(boolean onlySoftClipped) {
+		this.onlySoftClipped = onlySoftClipped;
+	}
+
+	/**
+	 * @param read
+	 *            a mapped read
+	 * @return true if the read may carry any evidence; the read is counted
+	 *         for the first rule that kept it
+	 */
+	public boolean accept(SAMRecord read) {
+		if (DisconcordanceAnalyzer.hasUnmappedMate(read)) {
+			keptByUnmappedMate.increment();
+			return true;
+		}
+		if (DisconcordanceAnalyzer.hasDisconcordantMate(read)) {
+			keptByDisconcordantMate.increment();
+			return true;
+		}
+		if (InsertSizeAnalyzer.mayBeInformative(read)) {
+			keptByInsertSize.increment();
+			return true;
+		}
+
+		boolean hasDeletion = false;
+		List<CigarElement> elements = read.getCigar().getCigarElements();
+		for (int i = 0; i < elements.size(); i++) {
+			CigarOperator operator = elements.get(i).getOperator();
+			if (operator == CigarOperator.SOFT_CLIP) {
+				keptBySoftClip.increment();
+				return true;
+			} else if (operator == CigarOperator.DELETION) {
+				hasDeletion = true;
+			}
+		}
+		if (hasDeletion && !onlySoftClipped) {
+			keptByDeletion.increment();
+			return true;
+		}
+
+		rejected.increment();
+		return false;
+	}
+
+	public long getKeptByUnmappedMate() {
+		return keptByUnmappedMate.sum();
+	}
+
+	public long getKeptByDisconcordantMate() {
+		return keptByDisconcordantMate.sum();
+	}
+
+	public long getKeptByInsertSize() {
+		return keptByInsertSize.sum();
+	}
+
+	public long getKeptBySoftClip() {
+		return keptBySoftClip.sum();
+	}
+
+	public long getKeptByDeletion() {
+		return keptByDeletion.sum();
+	}
+
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	@Override
+	public String toString() {
+		long kept = getKeptByUnmappedMate() + getKeptByDisconcordantMate() + getKeptByInsertSize()
+				+ getKeptBySoftClip() + getKeptByDeletion();
+		return "kept " + kept + " (unmapped mate: " + getKeptByUnmappedMate() + ", disconcordant mate: "
+				+ getKeptByDisconcordantMate() + ", insert size: " + getKeptByInsertSize() + ", soft clip: "
+				+ getKeptBySoftClip() + ", deletion: " + getKeptByDeletion() + "), rejected " + getRejected();
+	}
+}
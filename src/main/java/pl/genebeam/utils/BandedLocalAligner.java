@@ -0,0 +1,340 @@
+package pl.genebeam.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Smith-Waterman local alignment of nucleotide sequences with affine gaps,
+ * working directly on byte[] bases. Scores follow the NUC.4.4 matrix (match
+ * 5, mismatch -4, N against a base -2, N against N -1) and a gap of length k
+ * costs 5 + 2 * k, as the BioJava alignment used before. Bases are compared
+ * case insensitive, other IUPAC codes are scored as N.
+ *
+ * Only diagonals (target index - query index) in [-slack, targetLength -
+ * queryLength + slack] are computed, i.e. placements of the query inside the
+ * target overhanging it by at most slack bases. DP buffers are kept between
+ * calls and grow when needed, so an instance must not be shared between
+ * threads. The result of the last alignment is available through the getters,
+ * aligned strings are only built on demand. An ungapped alignment on a single
+ * diagonal can be computed instead, as a fast path for expected placements.
+ *
+ * @author pstawinski
+ *
+ */
+public class BandedLocalAligner {
+	public static final int MATCH = 5;
+	public static final int MISMATCH = -4;
+	public static final int N_TO_BASE = -2;
+	public static final int N_TO_N = -1;
+	public static final int GAP_OPEN = 5;
+	public static final int GAP_EXTENSION = 2;
+
+	private static final int NEGATIVE_INFINITY = Integer.MIN_VALUE / 2;
+	private static final byte N = 4;
+	private static final byte[] CODES = new byte[256];
+	static {
+		Arrays.fill(CODES, N);
+		CODES['A'] = CODES['a'] = 0;
+		CODES['C'] = CODES['c'] = 1;
+		CODES['G'] = CODES['g'] = 2;
+		CODES['T'] = CODES['t'] = 3;
+	}
+
+	/**
+	 * traceback flags: source of H in the two lowest bits, E and F extension
+	 * in the next ones
+	 */
+	private static final byte FROM_ZERO = 0, FROM_DIAGONAL = 1, FROM_E = 2, FROM_F = 3;
+	private static final byte E_EXTENDED = 4, F_EXTENDED = 8;
+
+	private int[] h = new int[0];
+	private int[] e = new int[0];
+	private byte[] traceback = new byte[0];
+
+	private byte[] query, target;
+	private int queryOffset, targetOffset, targetLength;
+
+	private int score;
+	private int identicals;
+	/**
+	 * false if the last alignment was ungapped and has no traceback
+	 */
+	private boolean gapped;
+	private int queryStart, queryEnd, targetStart, targetEnd;
+
+	/**
+	 * Align query[queryOffset, queryOffset + queryLength) locally to
+	 * target[targetOffset, targetOffset + targetLength).
+	 *
+	 * @return score of the best local alignment, 0 if nothing aligns
+	 */
+	public int align(byte[] query, int queryOffset, int queryLength, byte[] target, int targetOffset,
+			int targetLength, int slack) {
+		this.query = query;
+		this.queryOffset = queryOffset;
+		this.target = target;
+		this.targetOffset = targetOffset;
+		this.targetLength = targetLength;
+
+		int n = queryLength, m = targetLength;
+		ensureCapacity(n, m);
+		int minDiagonal = -slack;
+		int maxDiagonal = m - n + slack;
+
+		// row 0
+		for (int j = 0; j <= m; j++) {
+			h[j] = 0;
+			e[j] = NEGATIVE_INFINITY;
+		}
+
+		int bestScore = 0, bestI = 0, bestJ = 0;
+		int gapFirst = GAP_OPEN + GAP_EXTENSION;
+		for (int i = 1; i <= n; i++) {
+			int lo = Math.max(1, i + minDiagonal);
+			int hi = Math.min(m, i + maxDiagonal);
+			if (lo > hi) {
+				if (i + minDiagonal > m) {
+					// band left the target, no more cells
+					break;
+				}
+				continue;
+			}
+			byte queryCode = CODES[query[queryOffset + i - 1] & 0xff];
+			int row = i * (m + 1);
+
+			// H[i - 1][lo - 1], column 0 stays 0
+			int diagonal = h[lo - 1];
+			int left = 0;
+			int f = NEGATIVE_INFINITY;
+			for (int j = lo; j <= hi; j++) {
+				byte flags;
+				// gap in the target, coming from the row above
+				int up = h[j];
+				int eOpen = up - gapFirst;
+				int eExtend = e[j] - GAP_EXTENSION;
+				int eValue;
+				if (eExtend > eOpen) {
+					eValue = eExtend;
+					flags = E_EXTENDED;
+				} else {
+					eValue = eOpen;
+					flags = 0;
+				}
+				// gap in the query, coming from the left
+				int fOpen = left - gapFirst;
+				int fExtend = f - GAP_EXTENSION;
+				if (fExtend > fOpen) {
+					f = fExtend;
+					flags |= F_EXTENDED;
+				} else {
+					f = fOpen;
+				}
+
+				int value = diagonal + score(queryCode, CODES[target[targetOffset + j - 1] & 0xff]);
+				byte source = FROM_DIAGONAL;
+				if (eValue > value) {
+					value = eValue;
+					source = FROM_E;
+				}
+				if (f > value) {
+					value = f;
+					source = FROM_F;
+				}
+				if (value <= 0) {
+					value = 0;
+					source = FROM_ZERO;
+				}
+				traceback[row + j] = (byte) (flags | source);
+
+				diagonal = up;
+				h[j] = value;
+				e[j] = eValue;
+				left = value;
+				if (value > bestScore) {
+					bestScore = value;
+					bestI = i;
+					bestJ = j;
+				}
+			}
+			// the next row may read one column right of this band
+			if (hi + 1 <= m) {
+				h[hi + 1] = 0;
+				e[hi + 1] = NEGATIVE_INFINITY;
+			}
+		}
+
+		this.score = bestScore;
+		this.queryEnd = bestI;
+		this.targetEnd = bestJ;
+		this.gapped = true;
+		trace(null, null);
+		return bestScore;
+	}
+
+	/**
+	 * Best scoring ungapped local alignment of the query placed at
+	 * target[targetOffset, targetOffset + queryLength), the whole placement
+	 * has to be within the target.
+	 *
+	 * @return score of the best segment, 0 if nothing aligns
+	 */
+	public int alignUngapped(byte[] query, int queryOffset, int queryLength, byte[] target, int targetOffset) {
+		this.query = query;
+		this.queryOffset = queryOffset;
+		this.target = target;
+		this.targetOffset = targetOffset;
+		this.targetLength = queryLength;
+
+		int bestScore = 0, bestStart = 0, bestEnd = 0, bestIdenticals = 0;
+		int current = 0, currentStart = 0, currentIdenticals = 0;
+		for (int i = 0; i < queryLength; i++) {
+			byte q = query[queryOffset + i];
+			byte t = target[targetOffset + i];
+			current += score(CODES[q & 0xff], CODES[t & 0xff]);
+			if (q == t || Character.toUpperCase(q) == Character.toUpperCase(t)) {
+				currentIdenticals++;
+			}
+			if (current <= 0) {
+				current = 0;
+				currentStart = i + 1;
+				currentIdenticals = 0;
+			} else if (current > bestScore) {
+				bestScore = current;
+				bestStart = currentStart;
+				bestEnd = i + 1;
+				bestIdenticals = currentIdenticals;
+			}
+		}
+
+		this.score = bestScore;
+		this.identicals = bestIdenticals;
+		this.queryStart = this.targetStart = bestStart;
+		this.queryEnd = this.targetEnd = bestEnd;
+		this.gapped = false;
+		return bestScore;
+	}
+
+	/**
+	 * Walk back from the best cell counting identical columns; builds the
+	 * aligned strings when builders are given
+	 */
+	private void trace(StringBuilder alignedQuery, StringBuilder alignedTarget) {
+		int i = queryEnd, j = targetEnd;
+		int identical = 0;
+		int state = score > 0 ? FROM_DIAGONAL : FROM_ZERO;
+		int m1 = targetLength + 1;
+		while (state != FROM_ZERO) {
+			if (i == 0 || j == 0) {
+				// first row and column are not in the traceback
+				break;
+			}
+			byte flags = traceback[i * m1 + j];
+			if (state == FROM_DIAGONAL) {
+				state = flags & 3;
+				if (state == FROM_DIAGONAL) {
+					byte q = query[queryOffset + i - 1];
+					byte t = target[targetOffset + j - 1];
+					if (q == t || Character.toUpperCase(q) == Character.toUpperCase(t)) {
+						identical++;
+					}
+					if (alignedQuery != null) {
+						alignedQuery.append((char) q);
+						alignedTarget.append((char) t);
+					}
+					i--;
+					j--;
+				}
+			} else if (state == FROM_E) {
+				if (alignedQuery != null) {
+					alignedQuery.append((char) query[queryOffset + i - 1]);
+					alignedTarget.append('-');
+				}
+				state = (flags & E_EXTENDED) != 0 ? FROM_E : FROM_DIAGONAL;
+				i--;
+			} else {
+				if (alignedQuery != null) {
+					alignedQuery.append('-');
+					alignedTarget.append((char) target[targetOffset + j - 1]);
+				}
+				state = (flags & F_EXTENDED) != 0 ? FROM_F : FROM_DIAGONAL;
+				j--;
+			}
+		}
+		this.identicals = identical;
+		this.queryStart = i;
+		this.targetStart = j;
+	}
+
+	private static int score(byte a, byte b) {
+		if (a == N || b == N) {
+			return a == b ? N_TO_N : N_TO_BASE;
+		}
+		return a == b ? MATCH : MISMATCH;
+	}
+
+	private void ensureCapacity(int n, int m) {
+		if (h.length < m + 1) {
+			h = new int[m + 1];
+			e = new int[m + 1];
+		}
+		int cells = (n + 1) * (m + 1);
+		if (traceback.length < cells) {
+			traceback = new byte[cells];
+		}
+	}
+
+	public int getScore() {
+		return score;
+	}
+
+	/**
+	 * @return number of aligned columns with identical bases
+	 */
+	public int getIdenticals() {
+		return identicals;
+	}
+
+	/**
+	 * @return start of the aligned part of the query, 0-based relative to the
+	 *         query offset
+	 */
+	public int getQueryStart() {
+		return queryStart;
+	}
+
+	/**
+	 * @return end (exclusive) of the aligned part of the query
+	 */
+	public int getQueryEnd() {
+		return queryEnd;
+	}
+
+	/**
+	 * @return start of the aligned part of the target, relative to the target
+	 *         offset of the last alignment
+	 */
+	public int getTargetStart() {
+		return targetStart;
+	}
+
+	public int getTargetEnd() {
+		return targetEnd;
+	}
+
+	/**
+	 * @return the last alignment as two strings (query, target) of equal
+	 *         length with '-' for gaps
+	 */
+	public String[] getAlignedStrings() {
+		if (!gapped) {
+			return new String[] {
+					new String(query, queryOffset + queryStart, queryEnd - queryStart, StandardCharsets.US_ASCII),
+					new String(target, targetOffset + targetStart, targetEnd - targetStart,
+							StandardCharsets.US_ASCII) };
+		}
+		StringBuilder alignedQuery = new StringBuilder();
+		StringBuilder alignedTarget = new StringBuilder();
+		trace(alignedQuery, alignedTarget);
+		return new String[] { alignedQuery.reverse().toString(), alignedTarget.reverse().toString() };
+	}
+}
@@ -0,0 +1,301 @@
+package pl.genebeam.utils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Immutable index of closed intervals [start, end] keyed by the contig (bam
+ * reference) index. Intervals of a contig are kept in sorted primitive arrays
+ * laid out as an implicit interval tree: the array sorted by start is read as a
+ * complete binary search tree (node x at level k has children x -/+
+ * 2^(k-1)) and every node keeps the maximal end of its subtree. Queries do not
+ * box coordinates and do not allocate, results are appended to a list given by
+ * the caller.
+ *
+ * @author pstawinski
+ *
+ * @param <T>
+ */
+public class ContigIntervalIndex<T> {
+	private final Contig<T>[] contigs;
+
+	private static final class Contig<T> {
+		private final int[] starts;
+		private final int[] ends;
+		/**
+		 * maximal end in the subtree of the node
+		 */
+		private final int[] maxEnds;
+		private final T[] values;
+		/**
+		 * level of the root node
+		 */
+		private final int rootLevel;
+
+		Contig(int[] starts, int[] ends, T[] values) {
+			this.starts = starts;
+			this.ends = ends;
+			this.values = values;
+			this.maxEnds = new int[starts.length];
+
+			int level = 0;
+			while ((1L << (level + 1)) - 1 < starts.length) {
+				level++;
+			}
+			this.rootLevel = level;
+			computeMaxEnds((1 << level) - 1, level);
+		}
+
+		/**
+		 * @return maximal end in the subtree, Integer.MIN_VALUE if the subtree
+		 *         has no nodes within the array
+		 */
+		private int computeMaxEnds(int x, int level) {
+			int left = Integer.MIN_VALUE, right = Integer.MIN_VALUE;
+			if (level > 0) {
+				left = computeMaxEnds(x - (1 << (level - 1)), level - 1);
+				if (x < starts.length) {
+					right = computeMaxEnds(x + (1 << (level - 1)), level - 1);
+				}
+			}
+			if (x >= starts.length) {
+				return left;
+			}
+			maxEnds[x] = Math.max(ends[x], Math.max(left, right));
+			return maxEnds[x];
+		}
+
+		private void overlapping(int x, int level, int start, int end, List<? super T> out) {
+			if (x >= starts.length) {
+				// out of the array, only the left subtree may hold nodes
+				if (level > 0) {
+					overlapping(x - (1 << (level - 1)), level - 1, start, end, out);
+				}
+				return;
+			}
+			if (maxEnds[x] < start) {
+				// everything in this subtree ends before the query
+				return;
+			}
+			if (level > 0) {
+				overlapping(x - (1 << (level - 1)), level - 1, start, end, out);
+			}
+			if (starts[x] > end) {
+				// this node and the right subtree start after the query
+				return;
+			}
+			if (ends[x] >= start) {
+				out.add(values[x]);
+			}
+			if (level > 0) {
+				overlapping(x + (1 << (level - 1)), level - 1, start, end, out);
+			}
+		}
+	}
+
+	private ContigIntervalIndex(Contig<T>[] contigs) {
+		this.contigs = contigs;
+	}
+
+	/**
+	 * Append to out all values which intervals overlap [start, end] on the
+	 * contig, in the order of interval starts
+	 */
+	public void overlapping(int referenceIndex, int start, int end, List<? super T> out) {
+		if (referenceIndex < 0 || referenceIndex >= contigs.length) {
+			return;
+		}
+		Contig<T> contig = contigs[referenceIndex];
+		if (contig != null) {
+			contig.overlapping((1 << contig.rootLevel) - 1, contig.rootLevel, start, end, out);
+		}
+	}
+
+	/**
+	 * Append to out all values which intervals contain the position
+	 */
+	public void containing(int referenceIndex, int position, List<? super T> out) {
+		overlapping(referenceIndex, position, position, out);
+	}
+
+	/**
+	 * @param lookBehind
+	 *            how far below the anchor of the last move positions may be
+	 *            queried without falling back to the tree
+	 * @return cursor for queries of reads coming in coordinate order, to be
+	 *         used by a single thread
+	 */
+	public Sweep<T> sweep(int lookBehind) {
+		return new Sweep<>(this, lookBehind);
+	}
+
+	/**
+	 * Window of intervals active around a position which only moves forward,
+	 * as the alignment start of reads of a coordinate sorted bam. Intervals of
+	 * the contig enter the window in the order of starts as queries reach
+	 * them and leave it when they end lookBehind bases below the anchor, so a
+	 * query looks only at the few intervals around the current position.
+	 * Moving back or to another contig restarts the window. Queries return
+	 * the same values in the same order as the tree.
+	 */
+	public static final class Sweep<T> {
+		private final ContigIntervalIndex<T> index;
+		private final int lookBehind;
+		private Contig<T> contig;
+		private int referenceIndex = -1;
+		private int anchor;
+		/**
+		 * first interval of the contig not yet in the window
+		 */
+		private int next;
+		/**
+		 * intervals in the window, increasing
+		 */
+		private final TIntArrayList active = new TIntArrayList();
+
+		private Sweep(ContigIntervalIndex<T> index, int lookBehind) {
+			this.index = index;
+			this.lookBehind = lookBehind;
+		}
+
+		/**
+		 * Move the window to the anchor, intervals ending more than lookBehind
+		 * bases below it leave the window
+		 */
+		public void moveTo(int referenceIndex, int anchor) {
+			if (referenceIndex != this.referenceIndex || anchor < this.anchor) {
+				this.referenceIndex = referenceIndex;
+				this.contig = referenceIndex >= 0 && referenceIndex < index.contigs.length
+						? index.contigs[referenceIndex] : null;
+				this.next = 0;
+				this.active.resetQuick();
+			}
+			this.anchor = anchor;
+			if (contig == null) {
+				return;
+			}
+			int floor = floor();
+			int kept = 0;
+			for (int i = 0; i < active.size(); i++) {
+				int x = active.getQuick(i);
+				if (contig.ends[x] >= floor) {
+					active.setQuick(kept++, x);
+				}
+			}
+			active.remove(kept, active.size() - kept);
+		}
+
+		/**
+		 * Append to out all values which intervals contain the position on
+		 * the contig of the last move
+		 */
+		public void containing(int position, List<? super T> out) {
+			if (contig == null) {
+				return;
+			}
+			int floor = floor();
+			if (position < floor) {
+				index.containing(referenceIndex, position, out);
+				return;
+			}
+			while (next < contig.starts.length && contig.starts[next] <= position) {
+				if (contig.ends[next] >= floor) {
+					active.add(next);
+				}
+				next++;
+			}
+			for (int i = 0; i < active.size(); i++) {
+				int x = active.getQuick(i);
+				if (contig.starts[x] <= position && contig.ends[x] >= position) {
+					out.add(contig.values[x]);
+				}
+			}
+		}
+
+		private int floor() {
+			return anchor - lookBehind;
+		}
+	}
+
+	public static <T> Builder<T> builder(int numberOfContigs) {
+		return new Builder<>(numberOfContigs);
+	}
+
+	public static class Builder<T> {
+		private final List<List<Entry<T>>> entries;
+
+		private static final class Entry<T> {
+			private final int start;
+			private final int end;
+			private final T value;
+
+			Entry(int start, int end, T value) {
+				this.start = start;
+				this.end = end;
+				this.value = value;
+			}
+		}
+
+		private Builder(int numberOfContigs) {
+			entries = new ArrayList<>(numberOfContigs);
+			for (int i = 0; i < numberOfContigs; i++) {
+				entries.add(null);
+			}
+		}
+
+		/**
+		 * add the closed interval [start, end]
+		 */
+		public Builder<T> add(int referenceIndex, int start, int end, T value) {
+			if (start > end) {
+				// empty interval never overlaps anything
+				return this;
+			}
+			List<Entry<T>> contigEntries = entries.get(referenceIndex);
+			if (contigEntries == null) {
+				contigEntries = new ArrayList<>();
+				entries.set(referenceIndex, contigEntries);
+			}
+			contigEntries.add(new Entry<>(start, end, value));
+			return this;
+		}
+
+		public ContigIntervalIndex<T> build() {
+			Contig<T>[] contigs = newContigs(entries.size());
+			for (int i = 0; i < entries.size(); i++) {
+				List<Entry<T>> contigEntries = entries.get(i);
+				if (contigEntries == null) {
+					continue;
+				}
+				List<Entry<T>> sorted = new ArrayList<>(contigEntries);
+				// stable, equal starts keep the order of adding
+				sorted.sort(Comparator.comparingInt((Entry<T> e) -> e.start));
+
+				int[] starts = new int[sorted.size()];
+				int[] ends = new int[sorted.size()];
+				T[] values = newValues(sorted.size());
+				for (int j = 0; j < sorted.size(); j++) {
+					Entry<T> entry = sorted.get(j);
+					starts[j] = entry.start;
+					ends[j] = entry.end;
+					values[j] = entry.value;
+				}
+				contigs[i] = new Contig<>(starts, ends, values);
+			}
+			return new ContigIntervalIndex<>(contigs);
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private static <T> Contig<T>[] newContigs(int size) {
+			return new Contig[size];
+		}
+
+		@SuppressWarnings("unchecked")
+		private static <T> T[] newValues(int size) {
+			return (T[]) new Object[size];
+		}
+	}
+}
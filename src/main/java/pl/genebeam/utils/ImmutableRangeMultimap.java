@@ -0,0 +1,137 @@
+package pl.genebeam.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.BoundType;
+import com.google.common.collect.ImmutableRangeMap;
+import com.google.common.collect.Range;
+
+/**
+ * Read-only counterpart of RangeMultimapGeneral, created by the builder from
+ * all ranges at once. Lookups are binary searches over the disjoint
+ * fragments of an ImmutableRangeMap.
+ */
+public final class ImmutableRangeMultimap<R extends Comparable<R>, K> {
+    private final ImmutableRangeMap<R, List<K>> map;
+    /**
+     * entries of the map in order, for batch queries
+     */
+    private final List<Entry<Range<R>, List<K>>> fragments;
+
+    private ImmutableRangeMultimap(ImmutableRangeMap<R, List<K>> map) {
+        this.map = map;
+        this.fragments = new ArrayList<>(map.asMapOfRanges().entrySet());
+    }
+
+    public static <R extends Comparable<R>, K> Builder<R, K> builder() {
+        return new Builder<>();
+    }
+
+    /**
+     * Collects all ranges first and builds the map in a single sweep over
+     * their sorted endpoints, instead of splitting the map on every put.
+     * Ranges need both bounds.
+     */
+    public static final class Builder<R extends Comparable<R>, K> {
+        private final List<Range<R>> ranges = new ArrayList<>();
+        private final List<K> values = new ArrayList<>();
+
+        private Builder() {
+        }
+
+        public Builder<R, K> put(Range<R> range, K value) {
+            Preconditions.checkArgument(range.hasLowerBound() && range.hasUpperBound(),
+                    "Range has to be bounded: %s", range);
+            if (!range.isEmpty()) {
+                ranges.add(range);
+                values.add(value);
+            }
+            return this;
+        }
+
+        public ImmutableRangeMultimap<R, K> build() {
+            // endpoint 2 * i is the lower one of range i, 2 * i + 1 the upper
+            Integer[] endpoints = new Integer[2 * ranges.size()];
+            for (int i = 0; i < endpoints.length; i++) {
+                endpoints[i] = i;
+            }
+            Comparator<Integer> cutOrder = Comparator.comparing(this::endpoint).thenComparingInt(this::side);
+            Arrays.sort(endpoints, cutOrder);
+
+            ImmutableRangeMap.Builder<R, List<K>> builder = ImmutableRangeMap.builder();
+            // indices of ranges covering the current fragment, in order of puts
+            TreeSet<Integer> active = new TreeSet<>();
+            Integer previous = null;
+            for (int e = 0; e < endpoints.length;) {
+                Integer cut = endpoints[e];
+                if (!active.isEmpty()) {
+                    List<K> fragmentValues = new ArrayList<>(active.size());
+                    for (int i : active) {
+                        fragmentValues.add(values.get(i));
+                    }
+                    builder.put(Range.range(endpoint(previous), side(previous) == 0 ? BoundType.CLOSED : BoundType.OPEN,
+                            endpoint(cut), side(cut) == 0 ? BoundType.OPEN : BoundType.CLOSED),
+                            Collections.unmodifiableList(fragmentValues));
+                }
+                for (; e < endpoints.length && cutOrder.compare(endpoints[e], cut) == 0; e++) {
+                    if (endpoints[e] % 2 == 0) {
+                        active.add(endpoints[e] / 2);
+                    } else {
+                        active.remove(endpoints[e] / 2);
+                    }
+                }
+                previous = cut;
+            }
+            return new ImmutableRangeMultimap<>(builder.build());
+        }
+
+        private R endpoint(int e) {
+            Range<R> range = ranges.get(e / 2);
+            return e % 2 == 0 ? range.lowerEndpoint() : range.upperEndpoint();
+        }
+
+        /**
+         * @return 0 if the cut lies just below the endpoint, 1 if just above
+         */
+        private int side(int e) {
+            Range<R> range = ranges.get(e / 2);
+            if (e % 2 == 0) {
+                return range.lowerBoundType() == BoundType.CLOSED ? 0 : 1;
+            }
+            return range.upperBoundType() == BoundType.CLOSED ? 1 : 0;
+        }
+    }
+
+    public Set<K> get(R key) {
+        List<K> v = map.get(key);
+        if (v == null)
+            return Collections.emptySet();
+
+        return new HashSet<K>(v);
+    }
+
+    public Set<K> get(Range<R> range) {
+        return map.subRangeMap(range).asMapOfRanges().values().stream().flatMap(Collection::stream)
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * Same as RangeMultimapGeneral.getAll
+     *
+     * @return values found for every query, in the order of queries
+     */
+    public List<Set<K>> getAll(List<Range<R>> queries) {
+        return RangeMultimapGeneral.getAll(fragments, queries);
+    }
+}
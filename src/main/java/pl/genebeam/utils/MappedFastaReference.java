@@ -0,0 +1,192 @@
+package pl.genebeam.utils;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Splitter;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Reference fasta read through its .fai index from memory mapped segments.
+ * Lookups use only absolute reads of read-only buffers, so one instance can be
+ * shared by any number of threads without locking and without system calls.
+ * Positions are 1-based and inclusive, as in htsjdk ReferenceSequenceFile.
+ *
+ * @author pstawinski
+ *
+ */
+public class MappedFastaReference implements Closeable {
+	/**
+	 * lines mapped as one segment, keeps every segment below 2GB
+	 */
+	private static final int MAX_SEGMENT_BYTES = 1 << 30;
+
+	private static final Splitter tabSplitter = Splitter.on('\t');
+
+	private final RandomAccessFile file;
+	private final Map<String, Contig> contigs = new HashMap<>();
+	/**
+	 * MD5 of the contig names and lengths in the index order
+	 */
+	private final String dictionaryMd5;
+
+	private static final class Contig {
+		private final String name;
+		/**
+		 * position in the .fai index
+		 */
+		private final int index;
+		private final int length;
+		private final int lineBases;
+		private final int lineWidth;
+		private final int linesPerSegment;
+		private final MappedByteBuffer[] segments;
+
+		Contig(FileChannel channel, String name, int index, int length, long offset, int lineBases, int lineWidth)
+				throws IOException {
+			this.name = name;
+			this.index = index;
+			this.length = length;
+			this.lineBases = lineBases;
+			this.lineWidth = lineWidth;
+			this.linesPerSegment = Math.max(1, MAX_SEGMENT_BYTES / lineWidth);
+
+			long lines = (length + (long) lineBases - 1) / lineBases;
+			int numberOfSegments = (int) Math.max(1, (lines + linesPerSegment - 1) / linesPerSegment);
+			this.segments = new MappedByteBuffer[numberOfSegments];
+			// the last line may be shorter and has no line end counted
+			long contigBytes = lines == 0 ? 0 : (lines - 1) * lineWidth + (length - (lines - 1) * lineBases);
+			for (int i = 0; i < numberOfSegments; i++) {
+				long segmentStart = (long) i * linesPerSegment * lineWidth;
+				long segmentBytes = Math.min((long) linesPerSegment * lineWidth, contigBytes - segmentStart);
+				segments[i] = channel.map(MapMode.READ_ONLY, offset + segmentStart, Math.max(0, segmentBytes));
+			}
+		}
+
+		void copy(int start, int end, byte[] out, int outOffset) {
+			if (start < 1 || end > length) {
+				throw new IllegalArgumentException(
+						"Region " + name + ":" + start + "-" + end + " out of the contig of length " + length);
+			}
+			int position = start - 1;
+			int o = outOffset;
+			while (position < end) {
+				long line = position / lineBases;
+				int column = position % lineBases;
+				int segment = (int) (line / linesPerSegment);
+				MappedByteBuffer buffer = segments[segment];
+				int index = (int) ((line - (long) segment * linesPerSegment) * lineWidth) + column;
+				int count = Math.min(lineBases - column, end - position);
+				for (int i = 0; i < count; i++) {
+					out[o++] = buffer.get(index + i);
+				}
+				position += count;
+			}
+		}
+	}
+
+	public MappedFastaReference(File fasta) throws IOException {
+		File index = new File(fasta.getPath() + ".fai");
+		if (!index.exists()) {
+			throw new FileNotFoundException(
+					"Reference index " + index + " not found, create it with: samtools faidx " + fasta);
+		}
+		this.file = new RandomAccessFile(fasta, "r");
+		FileChannel channel = file.getChannel();
+		MessageDigest dictionaryDigest;
+		try {
+			dictionaryDigest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		try (BufferedReader reader = new BufferedReader(new FileReader(index))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty()) {
+					continue;
+				}
+				// name, length, offset, bases per line, bytes per line
+				List<String> fields = tabSplitter.splitToList(line);
+				String name = fields.get(0);
+				contigs.put(name, new Contig(channel, name, contigs.size(), Integer.parseInt(fields.get(1)),
+						Long.parseLong(fields.get(2)), Integer.parseInt(fields.get(3)), Integer.parseInt(fields.get(4))));
+				dictionaryDigest.update((name + "\t" + fields.get(1) + "\n").getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		this.dictionaryMd5 = BaseEncoding.base16().lowerCase().encode(dictionaryDigest.digest());
+	}
+
+	private Contig getContig(String contig) {
+		Contig c = contigs.get(contig);
+		if (c == null) {
+			throw new IllegalArgumentException("Contig " + contig + " not found in the reference");
+		}
+		return c;
+	}
+
+	/**
+	 * Copy bases of contig:start-end (1-based, inclusive) to out starting at
+	 * outOffset, as they are in the fasta (case is kept)
+	 */
+	public void copyBases(String contig, int start, int end, byte[] out, int outOffset) {
+		getContig(contig).copy(start, end, out, outOffset);
+	}
+
+	/**
+	 * @return bases of contig:start-end (1-based, inclusive)
+	 */
+	public byte[] getBases(String contig, int start, int end) {
+		byte[] bases = new byte[Math.max(0, end - start + 1)];
+		getContig(contig).copy(start, end, bases, 0);
+		return bases;
+	}
+
+	public boolean hasContig(String contig) {
+		return contigs.containsKey(contig);
+	}
+
+	/**
+	 * @return length of the contig, -1 if it is not in the reference
+	 */
+	public int getContigLength(String contig) {
+		Contig c = contigs.get(contig);
+		return c == null ? -1 : c.length;
+	}
+
+	/**
+	 * @return position of the contig in the reference index, -1 if it is not
+	 *         in the reference
+	 */
+	public int getContigIndex(String contig) {
+		Contig c = contigs.get(contig);
+		return c == null ? -1 : c.index;
+	}
+
+	/**
+	 * @return MD5 of the contig names and lengths, equal for references with
+	 *         the same sequence dictionary
+	 */
+	public String getDictionaryMd5() {
+		return dictionaryMd5;
+	}
+
+	@Override
+	public void close() throws IOException {
+		contigs.clear();
+		file.close();
+	}
+}
@@ -1,8 +1,10 @@
 package pl.genebeam.utils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -13,6 +15,7 @@ import java.util.stream.Collectors;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 
+import com.google.common.collect.BoundType;
 import com.google.common.collect.Range;
 import com.google.common.collect.RangeMap;
 import com.google.common.collect.RangeSet;
@@ -21,6 +24,10 @@ import com.google.common.collect.TreeRangeSet;
 
 public class RangeMultimapGeneral<R extends Comparable<R>, K> {
     private TreeRangeMap<R, List<K>> map = TreeRangeMap.create();
+    /**
+     * entries of the map in order, kept for batch queries until the next put
+     */
+    private List<Entry<Range<R>, List<K>>> fragments;
 
     public static void main(String[] args) {
 
@@ -51,7 +58,86 @@ public class RangeMultimapGeneral<R extends Comparable<R>, K> {
         return submap.asMapOfRanges().values().stream().flatMap(Collection::stream).collect(Collectors.toSet());
     }
 
+    /**
+     * Values of all ranges intersecting every query range, for many queries
+     * at once: queries are sorted by their lower endpoint and swept along the
+     * sorted disjoint fragments of the map, a fragment left behind by one
+     * query is never looked at again. Query ranges need a lower bound.
+     *
+     * @return values found for every query, in the order of queries
+     */
+    public List<Set<K>> getAll(List<Range<R>> queries) {
+        return getAll(getFragments(), queries);
+    }
+
+    /**
+     * getAll over the fragments of any range map, sorted and disjoint
+     */
+    static <R extends Comparable<R>, K> List<Set<K>> getAll(List<Entry<Range<R>, List<K>>> fragments,
+            List<Range<R>> queries) {
+        Integer[] order = new Integer[queries.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        // for equal endpoints a closed lower bound goes first, then a
+        // fragment ending before a query ends before all next ones
+        Arrays.sort(order, Comparator.comparing((Integer i) -> queries.get(i).lowerEndpoint())
+                .thenComparing(i -> queries.get(i).lowerBoundType() == BoundType.CLOSED ? 0 : 1));
+
+        List<Set<K>> found = new ArrayList<>(Collections.nCopies(queries.size(), Collections.<K>emptySet()));
+        int first = 0;
+        for (Integer i : order) {
+            Range<R> query = queries.get(i);
+            while (first < fragments.size() && endsBefore(fragments.get(first).getKey(), query)) {
+                first++;
+            }
+            Set<K> values = null;
+            for (int j = first; j < fragments.size() && !startsAfter(fragments.get(j).getKey(), query); j++) {
+                if (values == null) {
+                    values = new HashSet<K>();
+                }
+                values.addAll(fragments.get(j).getValue());
+            }
+            if (values != null) {
+                found.set(i, values);
+            }
+        }
+        return found;
+    }
+
+    private List<Entry<Range<R>, List<K>>> getFragments() {
+        if (fragments == null) {
+            fragments = new ArrayList<>(map.asMapOfRanges().entrySet());
+        }
+        return fragments;
+    }
+
+    /**
+     * @return true if the fragment lies entirely below the query
+     */
+    private static <R extends Comparable<R>> boolean endsBefore(Range<R> fragment, Range<R> query) {
+        if (!fragment.hasUpperBound()) {
+            return false;
+        }
+        int c = fragment.upperEndpoint().compareTo(query.lowerEndpoint());
+        return c < 0 || (c == 0
+                && (fragment.upperBoundType() == BoundType.OPEN || query.lowerBoundType() == BoundType.OPEN));
+    }
+
+    /**
+     * @return true if the fragment lies entirely above the query
+     */
+    private static <R extends Comparable<R>> boolean startsAfter(Range<R> fragment, Range<R> query) {
+        if (!fragment.hasLowerBound() || !query.hasUpperBound()) {
+            return false;
+        }
+        int c = fragment.lowerEndpoint().compareTo(query.upperEndpoint());
+        return c > 0 || (c == 0
+                && (fragment.lowerBoundType() == BoundType.OPEN || query.upperBoundType() == BoundType.OPEN));
+    }
+
     public void put(Range<R> range, K value) {
+        fragments = null;
         RangeMap<R, List<K>> subRangeMap = map.subRangeMap(range);
         Map<Range<R>, List<K>> submap = subRangeMap.asMapOfRanges();
         if (submap.isEmpty()) {
@@ -7,6 +7,7 @@ import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -49,7 +50,15 @@ public class TxNameToGeneName {
 		}
 	}
 
+	public TxNameToGeneName(Map<String, String> txToGene) {
+		this.txToGene.putAll(txToGene);
+	}
+
 	public String getGene(String txName) {
 		return txToGene.get(txName);
 	}
+
+	public Map<String, String> asMap() {
+		return Collections.unmodifiableMap(txToGene);
+	}
 }
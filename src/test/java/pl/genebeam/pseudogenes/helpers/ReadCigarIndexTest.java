@@ -0,0 +1,90 @@
+package pl.genebeam.pseudogenes.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+
+public class ReadCigarIndexTest {
+
+	/**
+	 * readPositionAt has to agree with htsjdk on random CIGARs, on every
+	 * reference position around the read
+	 */
+	@Test
+	public void readPositionsEqualToHtsjdk() {
+		Random random = new Random(0);
+		char[] operators = { 'M', 'I', 'D', 'N', '=', 'X' };
+		SAMRecord read = new SAMRecord(new SAMFileHeader());
+		ReadCigarIndex index = new ReadCigarIndex();
+		for (int r = 0; r < 20000; r++) {
+			StringBuilder cigar = new StringBuilder();
+			if (random.nextInt(4) == 0) {
+				cigar.append(1 + random.nextInt(5)).append('H');
+			}
+			if (random.nextBoolean()) {
+				cigar.append(1 + random.nextInt(30)).append('S');
+			}
+			cigar.append(1 + random.nextInt(40)).append('M');
+			int middle = random.nextInt(6);
+			for (int i = 0; i < middle; i++) {
+				char operator = operators[random.nextInt(operators.length)];
+				if (operator == 'I' || operator == 'D' || operator == 'N') {
+					cigar.append(1 + random.nextInt(operator == 'N' ? 500 : 10)).append(operator);
+					operator = 'M';
+				}
+				cigar.append(1 + random.nextInt(40)).append(operator);
+			}
+			if (random.nextBoolean()) {
+				cigar.append(1 + random.nextInt(30)).append('S');
+			}
+			if (random.nextInt(4) == 0) {
+				cigar.append(1 + random.nextInt(5)).append('H');
+			}
+			read.setAlignmentStart(1 + random.nextInt(1000));
+			read.setCigarString(cigar.toString());
+			index.reset(read);
+
+			for (int position = read.getAlignmentStart() - 5; position <= read.getAlignmentEnd() + 5; position++) {
+				assertEquals("CIGAR " + cigar + " at " + read.getAlignmentStart() + ", position " + position,
+						read.getReadPositionAtReferencePosition(position, true), index.readPositionAt(position));
+			}
+		}
+	}
+
+	/**
+	 * A soft clip after a hard clip does not start the CIGAR, so it is taken
+	 * for the right soft clip starting at the hard clip length. This is how
+	 * the clipped reads analysis always saw such reads and it is kept.
+	 */
+	@Test
+	public void softClipAfterHardClipIsRightClip() {
+		SAMRecord read = new SAMRecord(new SAMFileHeader());
+		read.setAlignmentStart(100);
+		read.setCigarString("5H10S50M");
+		ReadCigarIndex index = new ReadCigarIndex();
+		index.reset(read);
+
+		assertTrue(index.isSoftClipped());
+		assertEquals(-1, index.getSoftClippedLeftEnd());
+		assertEquals(5, index.getSoftClippedRightStart());
+		assertEquals(11, index.readPositionAt(100));
+	}
+
+	@Test
+	public void softClipsAtBothEnds() {
+		SAMRecord read = new SAMRecord(new SAMFileHeader());
+		read.setAlignmentStart(100);
+		read.setCigarString("10S50M5S");
+		ReadCigarIndex index = new ReadCigarIndex();
+		index.reset(read);
+
+		assertEquals(10, index.getSoftClippedLeftEnd());
+		assertEquals(60, index.getSoftClippedRightStart());
+	}
+}
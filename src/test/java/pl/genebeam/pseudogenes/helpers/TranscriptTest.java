@@ -0,0 +1,106 @@
+package pl.genebeam.pseudogenes.helpers;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+import com.google.common.collect.TreeRangeMap;
+
+/**
+ * The array based intron and junction lookups have to answer like the
+ * TreeRangeMap and TreeSet based ones they replaced.
+ */
+public class TranscriptTest {
+
+	@Test
+	public void regularIntrons() {
+		checkAgainstRangeMap(transcript(new int[] { 100, 300, 600, 1000 }, new int[] { 200, 400, 800, 1100 }));
+	}
+
+	/**
+	 * an empty exon between introns [200, 300) and [300, 500)
+	 */
+	@Test
+	public void adjacentIntrons() {
+		checkAgainstRangeMap(transcript(new int[] { 100, 300, 500, 700 }, new int[] { 200, 300, 600, 800 }));
+	}
+
+	/**
+	 * intron 0 is [200, 200)
+	 */
+	@Test
+	public void emptyIntron() {
+		checkAgainstRangeMap(transcript(new int[] { 100, 200, 400 }, new int[] { 200, 300, 500 }));
+	}
+
+	@Test
+	public void singleExon() {
+		checkAgainstRangeMap(transcript(new int[] { 100 }, new int[] { 500 }));
+	}
+
+	private static Transcript transcript(int[] exonStarts, int[] intronStarts) {
+		int txStart = exonStarts[0], txEnd = intronStarts[intronStarts.length - 1];
+		return new Transcript("NM_TEST", "TEST", "chr1", txStart, txEnd, txStart, txEnd, exonStarts, intronStarts,
+				true);
+	}
+
+	/**
+	 * all ranges between the junction sites, one base around them and the
+	 * transcript ends, then random ones
+	 */
+	private static void checkAgainstRangeMap(Transcript transcript) {
+		TreeRangeMap<Integer, Integer> introneMap = TreeRangeMap.create();
+		List<Integer> exonStarts = transcript.getExonStarts(), intronStarts = transcript.getIntronStarts();
+		for (int i = 0; i < transcript.getIntronesNumber(); i++) {
+			introneMap.put(Range.closedOpen(intronStarts.get(i), exonStarts.get(i + 1)), i);
+		}
+		TreeSet<Integer> junctionSites = new TreeSet<>(exonStarts);
+		junctionSites.addAll(intronStarts);
+
+		TreeSet<Integer> positions = new TreeSet<>();
+		for (int site : junctionSites) {
+			positions.add(site - 1);
+			positions.add(site);
+			positions.add(site + 1);
+		}
+		positions.add(transcript.getTxStart() - 50);
+		positions.add(transcript.getTxEnd() + 50);
+		for (int from : positions) {
+			for (int to : positions.tailSet(from)) {
+				check(transcript, introneMap, junctionSites, from, to);
+			}
+		}
+
+		Random random = new Random(0);
+		for (int k = 0; k < 10000; k++) {
+			int from = transcript.getTxStart() - 50
+					+ random.nextInt(transcript.getTxEnd() - transcript.getTxStart() + 100);
+			check(transcript, introneMap, junctionSites, from, from + random.nextInt(500));
+		}
+	}
+
+	private static void check(Transcript transcript, TreeRangeMap<Integer, Integer> introneMap,
+			TreeSet<Integer> junctionSites, int from, int to) {
+		Range<Integer> range = Range.closedOpen(from, to);
+		List<Integer> expected = new ArrayList<>();
+		int expectedLength = 0;
+		for (Map.Entry<Range<Integer>, Integer> intron : introneMap.asMapOfRanges().entrySet()) {
+			if (range.encloses(intron.getKey())) {
+				expected.add(intron.getValue());
+				expectedLength += intron.getKey().upperEndpoint() - intron.getKey().lowerEndpoint();
+			}
+		}
+		String message = "[" + from + ", " + to + ")";
+		assertEquals(message, expected, transcript.getIntronesIn(range));
+		assertEquals(message, expected.isEmpty() ? -1 : expected.get(0).intValue(), transcript.firstIntronIn(from, to));
+		assertEquals(message, expectedLength, transcript.intronesLengthIn(from, to));
+		assertEquals(message, !junctionSites.subSet(from, to).isEmpty(), transcript.hasJunctionIn(from, to));
+	}
+}
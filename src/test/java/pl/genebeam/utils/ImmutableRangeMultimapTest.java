@@ -0,0 +1,106 @@
+package pl.genebeam.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.collect.BoundType;
+import com.google.common.collect.Range;
+
+/**
+ * The built map has to answer like RangeMultimapGeneral filled by put.
+ */
+public class ImmutableRangeMultimapTest {
+
+    @Test
+    public void randomRanges() {
+        Random random = new Random(0);
+        List<Range<Integer>> ranges = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            int start = random.nextInt(1000);
+            ranges.add(Range.range(start, randomBoundType(random), start + 1 + random.nextInt(50),
+                    randomBoundType(random)));
+        }
+        List<Range<Integer>> queries = new ArrayList<>();
+        for (int i = -10; i < 1060; i++) {
+            queries.add(Range.range(i, randomBoundType(random), i + random.nextInt(20) + 1, randomBoundType(random)));
+        }
+        assertSameAnswers(ranges, -10, 1060, queries);
+    }
+
+    @Test
+    public void touchingRanges() {
+        List<Range<Integer>> ranges = new ArrayList<>();
+        ranges.add(Range.closedOpen(0, 5));
+        ranges.add(Range.closed(5, 10));
+        ranges.add(Range.open(10, 15));
+        ranges.add(Range.closed(15, 20));
+        ranges.add(Range.openClosed(20, 25));
+        ranges.add(Range.closed(25, 25));
+        assertSameAnswers(ranges, -2, 28, endpointQueries(-2, 28));
+    }
+
+    @Test
+    public void nestedRanges() {
+        List<Range<Integer>> ranges = new ArrayList<>();
+        ranges.add(Range.closed(0, 20));
+        ranges.add(Range.open(0, 20));
+        ranges.add(Range.closedOpen(0, 20));
+        ranges.add(Range.openClosed(0, 20));
+        ranges.add(Range.closed(5, 10));
+        ranges.add(Range.open(5, 10));
+        ranges.add(Range.closed(7, 7));
+        ranges.add(Range.closedOpen(10, 20));
+        assertSameAnswers(ranges, -2, 22, endpointQueries(-2, 22));
+    }
+
+    /**
+     * closed, open and half open queries of length 0 to 2 starting at every
+     * position
+     */
+    private static List<Range<Integer>> endpointQueries(int from, int to) {
+        List<Range<Integer>> queries = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            queries.add(Range.closed(i, i));
+            for (int length = 1; length <= 2; length++) {
+                queries.add(Range.closed(i, i + length));
+                queries.add(Range.open(i, i + length));
+                queries.add(Range.closedOpen(i, i + length));
+                queries.add(Range.openClosed(i, i + length));
+            }
+        }
+        return queries;
+    }
+
+    private static void assertSameAnswers(List<Range<Integer>> ranges, int from, int to,
+            List<Range<Integer>> queries) {
+        RangeMultimapGeneral<Integer, Integer> put = new RangeMultimapGeneral<>();
+        ImmutableRangeMultimap.Builder<Integer, Integer> builder = ImmutableRangeMultimap.builder();
+        for (int i = 0; i < ranges.size(); i++) {
+            put.put(ranges.get(i), i % 100);
+            builder.put(ranges.get(i), i % 100);
+        }
+        ImmutableRangeMultimap<Integer, Integer> built = builder.build();
+
+        for (int i = from; i < to; i++) {
+            assertEquals("position " + i, put.get(i), built.get(i));
+        }
+        for (Range<Integer> query : queries) {
+            assertEquals("range " + query, put.get(query), built.get(query));
+        }
+        List<Set<Integer>> all = built.getAll(queries);
+        assertEquals(put.getAll(queries), all);
+        for (int i = 0; i < queries.size(); i++) {
+            assertEquals("batch range " + queries.get(i), put.get(queries.get(i)), all.get(i));
+        }
+    }
+
+    private static BoundType randomBoundType(Random random) {
+        return random.nextBoolean() ? BoundType.CLOSED : BoundType.OPEN;
+    }
+}